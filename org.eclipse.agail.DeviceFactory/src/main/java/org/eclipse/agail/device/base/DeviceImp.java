@@ -17,6 +17,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import org.freedesktop.dbus.DBusSigHandler;
 import org.freedesktop.dbus.Variant;
@@ -27,6 +29,7 @@ import org.eclipse.agail.exception.AgileNoResultException;
 import org.eclipse.agail.Device;
 import org.eclipse.agail.Protocol;
 import org.eclipse.agail.Protocol.NewRecordSignal;
+import org.eclipse.agail.devicemanager.DeviceRegistry;
 import org.eclipse.agail.object.AbstractAgileObject;
 import org.eclipse.agail.object.DeviceComponent;
 import org.eclipse.agail.object.DeviceDefinition;
@@ -34,6 +37,9 @@ import org.eclipse.agail.object.DeviceOverview;
 import org.eclipse.agail.object.RecordObject;
 import org.eclipse.agail.object.StatusType;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 /**
  * @author dagi
  *
@@ -67,7 +73,7 @@ public abstract class DeviceImp extends AbstractAgileObject implements Device {
 	/**
 	 * Device name
 	 */
-	protected String deviceName;
+	protected volatile String deviceName;
 	/**
 	 * Device ID
 	 *
@@ -89,7 +95,7 @@ public abstract class DeviceImp extends AbstractAgileObject implements Device {
 	/**
 	 * 	
 	 */
-	protected List<DeviceComponent> profile = new ArrayList<DeviceComponent>();
+	protected volatile List<DeviceComponent> profile = new ArrayList<DeviceComponent>();
 
 	/**
 	 * The device protocol interface
@@ -118,6 +124,44 @@ public abstract class DeviceImp extends AbstractAgileObject implements Device {
 
 	protected boolean hasNewRecordSignalHandler = false;
 
+	/**
+	 * Applies the updates of the device definition made through the device
+	 * manager to the watched devices, one handler for all the devices of the
+	 * factory
+	 */
+	private static DBusSigHandler<DeviceRegistry.RegistryChangedSignal> definitionSigHandler;
+
+	/**
+	 * Devices following the updates of their definition, by device id
+	 */
+	private static final ConcurrentMap<String, DeviceImp> watched = new ConcurrentHashMap<String, DeviceImp>();
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Set once the device is stopped
+	 */
+	private volatile boolean stopped = false;
+
+	/**
+	 * State of a device passed to the instance of the new version of its class
+	 * when the plugin of the class is upgraded
+	 */
+	public static class Handover {
+		/**
+		 * Overview to create the new instance with, exported on the same path
+		 */
+		public final DeviceOverview overview;
+		final boolean connected;
+		final Map<String, Integer> subscriptions;
+
+		Handover(DeviceOverview overview, boolean connected, Map<String, Integer> subscriptions) {
+			this.overview = overview;
+			this.connected = connected;
+			this.subscriptions = subscriptions;
+		}
+	}
+
 	public DeviceImp(DeviceOverview deviceOverview) throws DBusException {
 		this.deviceName = deviceOverview.name;
 		this.deviceID = deviceOverview.getProtocol().replace("org.eclipse.agail.protocol.", "").toLowerCase() + deviceOverview.id.replace(":", "");
@@ -150,6 +194,56 @@ public abstract class DeviceImp extends AbstractAgileObject implements Device {
 
 	}
 
+	/**
+	 * Follow the updates of the device definition made through the device
+	 * manager, applying the new name and profile without reconnecting
+	 */
+	public void watchDefinition() throws DBusException {
+		synchronized (watched) {
+			if (definitionSigHandler == null) {
+				definitionSigHandler = new DBusSigHandler<DeviceRegistry.RegistryChangedSignal>() {
+					@Override
+					public void handle(DeviceRegistry.RegistryChangedSignal sig) {
+						if (DeviceRegistry.RegistryChangedSignal.UPDATED.equals(sig.event)) {
+							DeviceImp device = watched.get(sig.deviceId.trim());
+							if (device != null) {
+								device.definitionChanged(sig.change);
+							}
+						}
+					}
+				};
+				connection.addSigHandler(DeviceRegistry.RegistryChangedSignal.class, definitionSigHandler);
+			}
+			watched.put(deviceID, this);
+		}
+	}
+
+	/**
+	 * Apply the definition of an update, read from the JSON form of the change,
+	 * the fields missing from the update being left unchanged
+	 */
+	private void definitionChanged(String change) {
+		try {
+			JsonNode definition = mapper.readTree(change).path("definition");
+			if (!definition.isObject()) {
+				return;
+			}
+			if (definition.path("streams").isArray()) {
+				List<DeviceComponent> streams = new ArrayList<DeviceComponent>();
+				for (JsonNode stream : definition.path("streams")) {
+					streams.add(new DeviceComponent(stream.path("id").asText(null), stream.path("unit").asText(null)));
+				}
+				profile = streams;
+			}
+			if (definition.path("name").isTextual()) {
+				deviceName = definition.path("name").asText();
+			}
+			logger.info("Device {} definition updated", deviceID);
+		} catch (Exception e) {
+			logger.error("Unable to apply the definition update of {}: {}", deviceID, e.getMessage());
+		}
+	}
+
 	/**
 	 * @param args
 	 */
@@ -407,8 +501,62 @@ public abstract class DeviceImp extends AbstractAgileObject implements Device {
 	public void Unsubscribe(String component) throws DBusException {
 	}
 
+	/**
+	 * Stop the device so that an instance of another version of its class can
+	 * take its place
+	 *
+	 * @return the state to pass to {@link #takeOver} of the new instance
+	 */
+	public Handover handOver() throws DBusException {
+		boolean connected;
+		try {
+			connected = isConnected();
+		} catch (RuntimeException e) {
+			connected = false;
+		}
+		Handover handover = new Handover(new DeviceOverview(address, protocol, deviceName, ""), connected,
+				new HashMap<String, Integer>(subscribedComponents));
+		Stop();
+		return handover;
+	}
+
+	/**
+	 * Take the place of a device of another version of this class: connect
+	 * and subscribe as it was. The profile is the one of this version.
+	 */
+	public void takeOver(Handover handover) {
+		if (!handover.connected) {
+			return;
+		}
+		try {
+			Connect();
+		} catch (Exception e) {
+			logger.error("Unable to connect device {} again: {}", deviceID, e.getMessage());
+			return;
+		}
+		for (Map.Entry<String, Integer> subscription : handover.subscriptions.entrySet()) {
+			for (int i = 0; i < subscription.getValue(); i++) {
+				try {
+					Subscribe(subscription.getKey());
+				} catch (Exception e) {
+					logger.error("Unable to subscribe {} of device {} again: {}", subscription.getKey(), deviceID,
+							e.getMessage());
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true once the device was stopped
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
 	@Override
 	public void Stop() throws DBusException {
+		stopped = true;
 		try {
 			if (isConnected()) {
 				for(String component : subscribedComponents.keySet()){
@@ -421,6 +569,7 @@ public abstract class DeviceImp extends AbstractAgileObject implements Device {
 		} catch (Exception e) {
 			logger.error("Failed to stop device ", e);
 		}
+		watched.remove(deviceID, this);
 		dbusDisconnect();
 	}
 
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.device.base;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares which discovered devices a device class handles, in place of a
+ * static Matches(DeviceOverview) method.
+ *
+ * A device matches when its name contains one of the {@link #names}, its
+ * protocol is {@link #protocol} and its address starts with one of the
+ * {@link #addressPrefixes}; an empty element matches any device.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MatchRule {
+
+	/**
+	 * Substrings of the device name
+	 */
+	String[] names() default {};
+
+	/**
+	 * Compare the names ignoring case
+	 */
+	boolean ignoreCase() default false;
+
+	/**
+	 * Protocol bus name, e.g. org.eclipse.agail.protocol.BLE
+	 */
+	String protocol() default "";
+
+	/**
+	 * Prefixes of the device address, compared ignoring case
+	 */
+	String[] addressPrefixes() default {};
+}
@@ -11,12 +11,14 @@ import org.slf4j.LoggerFactory;
 import org.eclipse.agail.Device;
 import org.eclipse.agail.Protocol;
 import org.eclipse.agail.device.base.DeviceImp;
+import org.eclipse.agail.device.base.MatchRule;
 import org.eclipse.agail.exception.AgileNoResultException;
 import org.eclipse.agail.object.DeviceComponent;
 import org.eclipse.agail.object.DeviceOverview;
 import org.eclipse.agail.object.DeviceStatusType;
 import org.eclipse.agail.object.StatusType;
 
+@MatchRule(names = "DALI", ignoreCase = true)
 public class DaliDevice  extends DeviceImp implements Device {
     protected Logger logger = LoggerFactory.getLogger(DaliDevice.class);
 
@@ -54,10 +56,6 @@ public class DaliDevice  extends DeviceImp implements Device {
         logger.debug("Exposed device {} {}", deviceAgileID, devicePath);
     }
 
-    public static boolean Matches(DeviceOverview d) {
-        return d.name.toUpperCase().contains(deviceTypeName.toUpperCase());
-    }
-
     @Override
     protected String DeviceRead(String componentName) {
         logger.debug("DeviceReading {} {}", componentName, protocol);
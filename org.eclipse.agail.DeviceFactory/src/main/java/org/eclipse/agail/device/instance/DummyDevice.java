@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import org.eclipse.agail.Device;
 import org.eclipse.agail.Protocol;
 import org.eclipse.agail.device.base.DeviceImp;
+import org.eclipse.agail.device.base.MatchRule;
 import org.eclipse.agail.exception.AgileNoResultException;
 import org.eclipse.agail.object.DeviceComponent;
 import org.eclipse.agail.object.DeviceOverview;
@@ -30,6 +31,7 @@ import org.eclipse.agail.object.DeviceStatusType;
 import org.eclipse.agail.object.StatusType;
 import java.util.List;
 
+@MatchRule(names = "Dummy")
 public class DummyDevice extends DeviceImp implements Device {
   protected Logger logger = LoggerFactory.getLogger(DummyDevice.class);
 
@@ -62,10 +64,6 @@ public class DummyDevice extends DeviceImp implements Device {
     logger.debug("Exposed device {} {}", deviceAgileID, devicePath);
   }
 
-  public static boolean Matches(DeviceOverview d) {
-    return d.name.contains(deviceTypeName);
-  }
-
   @Override
   protected String DeviceRead(String componentName) {
     if ((protocol.equals(DUMMY_PROTOCOL_ID)) && (deviceProtocol != null)) {
@@ -25,6 +25,7 @@ import org.eclipse.agail.Device;
 import org.eclipse.agail.Protocol;
 import org.eclipse.agail.Protocol.NewRecordSignal;
 import org.eclipse.agail.device.base.AgileBLEDevice;
+import org.eclipse.agail.device.base.MatchRule;
 import org.eclipse.agail.device.base.SensorUuid;
 import org.eclipse.agail.object.DeviceDefinition;
 import org.eclipse.agail.object.DeviceOverview;
@@ -32,6 +33,7 @@ import org.eclipse.agail.object.RecordObject;
 import org.eclipse.agail.object.DeviceComponent;
 import org.eclipse.agail.exception.AgileNoResultException;
 
+@MatchRule(names = "HEXIWEAR")
 public abstract class HexiwearDevice extends AgileBLEDevice implements Device {
   protected Logger logger = LoggerFactory.getLogger(HexiwearDevice.class);
   protected static final Map<String, SensorUuid> sensors = new HashMap<String, SensorUuid>();
@@ -95,11 +97,7 @@ public abstract class HexiwearDevice extends AgileBLEDevice implements Device {
 		sensors.put(Calories, new SensorUuid("00002020-0000-1000-8000-00805f9b34fb", "00002023-0000-1000-8000-00805f9b34fb", "", ""));
 	}
 
-	public static boolean Matches(DeviceOverview d) {
-		return d.name.contains("HEXIWEAR");
-	}
-
-	public static String deviceTypeName = "HEXIWEAR";
+	public static final String deviceTypeName = "HEXIWEAR";
 
 	public HexiwearDevice(DeviceOverview deviceOverview) throws DBusException {
 		super(deviceOverview);
@@ -25,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import org.eclipse.agail.Device;
 import org.eclipse.agail.Protocol;
 import org.eclipse.agail.device.base.DeviceImp;
+import org.eclipse.agail.device.base.MatchRule;
 import org.eclipse.agail.exception.AgileNoResultException;
 import org.eclipse.agail.object.DeviceComponent;
 import org.eclipse.agail.object.DeviceOverview;
@@ -32,6 +33,7 @@ import org.eclipse.agail.object.DeviceStatusType;
 import org.eclipse.agail.object.StatusType;
 import java.util.List;
 
+@MatchRule(names = "LoRa")
 public class LoraDevice extends DeviceImp implements Device {
   protected Logger logger = LoggerFactory.getLogger(LoraDevice.class);
 
@@ -85,10 +87,6 @@ public class LoraDevice extends DeviceImp implements Device {
     logger.debug("Exposed device {} {}", deviceAgileID, devicePath);
   }
 
-  public static boolean Matches(DeviceOverview d) {    
-    return d.name.contains(deviceTypeName);
-  }
-
   @Override
   protected String DeviceRead(String componentName) {
     if ((protocol.equals(LORA_PROTOCOL_ID)) && (deviceProtocol != null)) {
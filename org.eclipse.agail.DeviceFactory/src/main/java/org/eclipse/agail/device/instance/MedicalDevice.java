@@ -30,8 +30,10 @@ import org.eclipse.agail.object.RecordObject;
 import org.eclipse.agail.object.DeviceComponent;
 import org.eclipse.agail.exception.AgileNoResultException;
 import org.eclipse.agail.device.base.AgileBLEDevice;
+import org.eclipse.agail.device.base.MatchRule;
 import org.eclipse.agail.device.base.SensorUuid;
 
+@MatchRule(names = { "Medical", "MyOximeter" })
 public abstract class MedicalDevice extends AgileBLEDevice implements Device {
   protected Logger logger = LoggerFactory.getLogger(MedicalDevice.class);
   protected static final Map<String, SensorUuid> sensors = new HashMap<String, SensorUuid>();
@@ -61,11 +63,7 @@ public abstract class MedicalDevice extends AgileBLEDevice implements Device {
 				new SensorUuid("cdeacb80-5235-4c07-8846-93a37ee6b86d", "cdeacb81-5235-4c07-8846-93a37ee6b86d","", ""));
 	}
 
-	public static boolean Matches(DeviceOverview d) {
-		return d.name.contains("Medical") || d.name.contains("MyOximeter");
-	}
-
-	public static String deviceTypeName = "Oximeter";
+	public static final String deviceTypeName = "Oximeter";
 
 	public MedicalDevice(DeviceOverview deviceOverview) throws DBusException {
 		super(deviceOverview);
@@ -21,6 +21,7 @@ import java.util.Map.Entry;
 
 import org.eclipse.agail.Device;
 import org.eclipse.agail.device.base.AgileBLEDevice;
+import org.eclipse.agail.device.base.MatchRule;
 import org.eclipse.agail.device.base.SensorUuid;
 import org.eclipse.agail.exception.AgileNoResultException;
 import org.eclipse.agail.object.DeviceComponent;
@@ -30,6 +31,7 @@ import org.freedesktop.dbus.exceptions.DBusException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+@MatchRule(names = "SensorTag")
 public class TISensorTag extends AgileBLEDevice implements Device {
 	protected Logger logger = LoggerFactory.getLogger(TISensorTag.class);
 	protected static final Map<String, SensorUuid> sensors = new HashMap<String, SensorUuid>();
@@ -113,11 +115,7 @@ public class TISensorTag extends AgileBLEDevice implements Device {
 		commands.put("TURN_OFF_ALL", TURN_OFF_SENSOR);
 	}
 
-	public static boolean Matches(DeviceOverview d) {
-		return d.name.contains("SensorTag");
-	}
-
-	public static String deviceTypeName = "TI SensorTag";
+	public static final String deviceTypeName = "TI SensorTag";
 
 	public TISensorTag(DeviceOverview deviceOverview) throws DBusException {
 		super(deviceOverview);
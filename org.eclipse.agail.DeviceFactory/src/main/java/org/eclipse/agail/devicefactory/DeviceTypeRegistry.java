@@ -0,0 +1,461 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicefactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+import org.eclipse.agail.Device;
+import org.eclipse.agail.device.base.MatchRule;
+import org.eclipse.agail.object.DeviceOverview;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The device classes known to the device factory, keyed by their
+ * deviceTypeName.
+ *
+ * The type name, the constructor and the {@link MatchRule} or static Matches
+ * method of a class are resolved once when the class is registered, so
+ * creating a device is a map lookup and a {@link MethodHandle} call, and
+ * matching a device runs a {@link MatchIndex} of all the rules and plain
+ * {@link Predicate}s for the Matches methods. The index is rebuilt and
+ * replaced on every change, so a match never sees a partly updated set.
+ *
+ * The classes listed in the {@value #INDEX} files generated at build time
+ * are registered by {@link #loadIndex} without being loaded: their type name
+ * and rule are read from the index, and the class is loaded and registered
+ * on the first creation of a device of its type.
+ */
+public class DeviceTypeRegistry {
+
+    protected static Logger logger = LoggerFactory.getLogger(DeviceTypeRegistry.class);
+
+    /**
+     * Index of the device classes, written by the device-processor module
+     */
+    public static final String INDEX = "META-INF/agile/device-types.properties";
+
+    private static final MethodType CONSTRUCTOR = MethodType.methodType(void.class, DeviceOverview.class);
+
+    private static final MethodType FACTORY = MethodType.methodType(Device.class, DeviceOverview.class);
+
+    private static final MethodType MATCHES = MethodType.methodType(boolean.class, DeviceOverview.class);
+
+    /**
+     * A registered device class
+     */
+    public static class DeviceType {
+        /**
+         * Key the class was registered with, its simple name
+         */
+        public final String key;
+        public final String name;
+        /**
+         * The class, null until an indexed class is first used
+         */
+        public final Class<?> deviceClass;
+        /**
+         * (DeviceOverview)Device, null for an abstract class
+         */
+        final MethodHandle constructor;
+        /**
+         * The declared match rule of the class, null if none
+         */
+        final MatchRule rule;
+        /**
+         * The static Matches method of a class without rule, null if none
+         */
+        final Predicate<DeviceOverview> matches;
+        /**
+         * Name and loader of an indexed class not loaded yet
+         */
+        final String className;
+        final ClassLoader loader;
+
+        DeviceType(String key, String name, Class<?> deviceClass, MethodHandle constructor, MatchRule rule,
+                Predicate<DeviceOverview> matches) {
+            this(key, name, deviceClass, constructor, rule, matches, deviceClass.getName(), null);
+        }
+
+        DeviceType(String key, String name, Class<?> deviceClass, MethodHandle constructor, MatchRule rule,
+                Predicate<DeviceOverview> matches, String className, ClassLoader loader) {
+            this.key = key;
+            this.name = name;
+            this.deviceClass = deviceClass;
+            this.constructor = constructor;
+            this.rule = rule;
+            this.matches = matches;
+            this.className = className;
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * Registered types by class key
+     */
+    private final ConcurrentMap<String, DeviceType> classes = new ConcurrentHashMap<String, DeviceType>();
+
+    /**
+     * Registered types by device type name
+     */
+    private final ConcurrentMap<String, DeviceType> types = new ConcurrentHashMap<String, DeviceType>();
+
+    private volatile MatchIndex index = MatchIndex.EMPTY;
+
+    /**
+     * Register a device class, replacing the class with the same key
+     *
+     * @param key
+     *            simple name of the class
+     * @return false if the class is not a device class
+     */
+    public synchronized boolean register(String key, Class<?> deviceClass) {
+        DeviceType type = resolve(key, deviceClass);
+        if (type == null) {
+            return false;
+        }
+        put(type);
+        updateIndex();
+        logger.debug("Registered device type {} ({})", type.name, deviceClass.getName());
+        return true;
+    }
+
+    /**
+     * Resolve the type name, constructor and matcher of a device class without
+     * registering it
+     *
+     * @return the type, null if the class is not a device class
+     */
+    public DeviceType resolve(String key, Class<?> deviceClass) {
+        String name;
+        try {
+            name = (String) deviceClass.getField("deviceTypeName").get(null);
+        } catch (ReflectiveOperationException | ClassCastException | NullPointerException e) {
+            logger.error("Class {} has no static deviceTypeName", deviceClass.getName());
+            return null;
+        }
+        MethodHandle constructor = null;
+        if (Device.class.isAssignableFrom(deviceClass) && !Modifier.isAbstract(deviceClass.getModifiers())) {
+            try {
+                constructor = MethodHandles.publicLookup().findConstructor(deviceClass, CONSTRUCTOR).asType(FACTORY);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Device class {} has no public constructor from a DeviceOverview", deviceClass.getName());
+            }
+        }
+        MatchRule rule = deviceClass.getAnnotation(MatchRule.class);
+        return new DeviceType(key, name, deviceClass, constructor, rule, rule == null ? matcher(deviceClass) : null);
+    }
+
+    /**
+     * Remove and add types in one change, a match or a creation sees either
+     * all the old types or all the new ones
+     *
+     * @param removed
+     *            keys of the types to remove
+     * @param added
+     *            resolved types to add, replacing the types with the same key
+     * @return the removed and replaced types by key
+     */
+    public synchronized Map<String, DeviceType> replace(Collection<String> removed, Collection<DeviceType> added) {
+        Map<String, DeviceType> previous = new HashMap<String, DeviceType>();
+        for (String key : removed) {
+            DeviceType type = classes.remove(key);
+            if (type != null) {
+                types.remove(type.name, type);
+                previous.put(key, type);
+            }
+        }
+        for (DeviceType type : added) {
+            DeviceType replaced = put(type);
+            if (replaced != null) {
+                previous.put(type.key, replaced);
+            }
+        }
+        updateIndex();
+        return previous;
+    }
+
+    private DeviceType put(DeviceType type) {
+        DeviceType previous = classes.put(type.key, type);
+        if (previous != null) {
+            types.remove(previous.name, previous);
+        }
+        types.put(type.name, type);
+        return previous;
+    }
+
+    /**
+     * Remove the class registered with the given key
+     *
+     * @return the removed type, null if none
+     */
+    public synchronized DeviceType unregister(String key) {
+        DeviceType type = classes.remove(key);
+        if (type != null) {
+            types.remove(type.name, type);
+            updateIndex();
+        }
+        return type;
+    }
+
+    /**
+     * Register the classes listed in the {@value #INDEX} files seen by a
+     * class loader. A class is only loaded now if the index lacks its type
+     * name or rule.
+     *
+     * @return the number of classes registered
+     */
+    public int loadIndex(ClassLoader loader) {
+        Enumeration<URL> urls;
+        try {
+            urls = loader.getResources(INDEX);
+        } catch (IOException e) {
+            logger.error("Unable to list the device indexes: {}", e.getMessage());
+            return 0;
+        }
+        int count = 0;
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            Properties index = new Properties();
+            try (InputStream in = url.openStream()) {
+                index.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.error("Unable to read the device index {}: {}", url, e.getMessage());
+                continue;
+            }
+            for (String property : index.stringPropertyNames()) {
+                if (property.endsWith(".class")) {
+                    String key = property.substring(0, property.length() - ".class".length());
+                    if (registerIndexed(key, index, loader)) {
+                        count++;
+                    }
+                }
+            }
+            logger.debug("Loaded device index {}", url);
+        }
+        return count;
+    }
+
+    private boolean registerIndexed(String key, Properties index, ClassLoader loader) {
+        String className = index.getProperty(key + ".class");
+        String name = index.getProperty(key + ".type");
+        if (name == null || !Boolean.parseBoolean(index.getProperty(key + ".rule"))) {
+            // the type name or the Matches method are only known from the class
+            try {
+                return register(key, Class.forName(className, true, loader));
+            } catch (ClassNotFoundException | LinkageError e) {
+                logger.error("Unable to load device class {}: {}", className, e.toString());
+                return false;
+            }
+        }
+        DeviceType type = new DeviceType(key, name, null, null, new IndexedRule(key, index), null, className, loader);
+        synchronized (this) {
+            put(type);
+            updateIndex();
+        }
+        logger.debug("Indexed device type {} ({})", name, className);
+        return true;
+    }
+
+    /**
+     * Load and register an indexed class
+     *
+     * @return the type registered for the class, null if it cannot be loaded
+     */
+    private synchronized DeviceType load(DeviceType indexed) {
+        if (classes.get(indexed.key) != indexed) {
+            // loaded or replaced meanwhile
+            return types.get(indexed.name);
+        }
+        try {
+            register(indexed.key, Class.forName(indexed.className, true, indexed.loader));
+        } catch (ClassNotFoundException | LinkageError e) {
+            logger.error("Unable to load device class {}: {}", indexed.className, e.toString());
+            unregister(indexed.key);
+            return null;
+        }
+        return types.get(indexed.name);
+    }
+
+    private void updateIndex() {
+        index = new MatchIndex(new ArrayList<DeviceType>(classes.values()));
+    }
+
+    /**
+     * Turn the static Matches(DeviceOverview) method of a class into a
+     * predicate, null if the class has none
+     */
+    @SuppressWarnings("unchecked")
+    private static Predicate<DeviceOverview> matcher(Class<?> deviceClass) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().findStatic(deviceClass, "Matches", MATCHES);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Device class {} has neither a MatchRule nor a public static Matches(DeviceOverview)",
+                    deviceClass.getName());
+            return null;
+        }
+        // a lambda class can only link to the classes its defining loader
+        // sees, the classes dropped in the watched directory are not
+        if (visible(deviceClass)) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                return (Predicate<DeviceOverview>) LambdaMetafactory.metafactory(lookup, "test",
+                        MethodType.methodType(Predicate.class), MethodType.methodType(boolean.class, Object.class),
+                        handle, MATCHES).getTarget().invokeExact();
+            } catch (Throwable e) {
+                logger.debug("Unable to compile the matcher of {}: {}", deviceClass.getName(), e.getMessage());
+            }
+        }
+        return overview -> {
+            try {
+                return (boolean) handle.invokeExact(overview);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    private static boolean visible(Class<?> deviceClass) {
+        try {
+            return Class.forName(deviceClass.getName(), false, DeviceTypeRegistry.class.getClassLoader()) == deviceClass;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the names of the types matching the device
+     */
+    public List<String> matching(DeviceOverview deviceOverview) {
+        return index.matching(deviceOverview);
+    }
+
+    public DeviceType get(String key) {
+        return classes.get(key);
+    }
+
+    /**
+     * @return the registered types
+     */
+    public Collection<DeviceType> types() {
+        return Collections.unmodifiableCollection(classes.values());
+    }
+
+    /**
+     * Create a device of the given type
+     *
+     * @return the device, null if no instantiable class has the type name
+     * @throws Exception
+     *             thrown by the device constructor
+     */
+    public Device create(String deviceType, DeviceOverview deviceOverview) throws Exception {
+        DeviceType type = types.get(deviceType);
+        if (type != null && type.deviceClass == null) {
+            type = load(type);
+        }
+        return type == null ? null : create(type, deviceOverview);
+    }
+
+    /**
+     * Create a device of the given, possibly no longer registered, type
+     *
+     * @return the device, null if the class is not instantiable
+     * @throws Exception
+     *             thrown by the device constructor
+     */
+    public static Device create(DeviceType type, DeviceOverview deviceOverview) throws Exception {
+        if (type.constructor == null) {
+            return null;
+        }
+        try {
+            return (Device) type.constructor.invokeExact(deviceOverview);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The match rule of an indexed class, read from the index
+     */
+    private static class IndexedRule implements MatchRule {
+
+        private final String[] names;
+        private final boolean ignoreCase;
+        private final String protocol;
+        private final String[] addressPrefixes;
+
+        IndexedRule(String key, Properties index) {
+            names = list(index, key + ".names");
+            ignoreCase = Boolean.parseBoolean(index.getProperty(key + ".ignoreCase"));
+            protocol = index.getProperty(key + ".protocol", "");
+            addressPrefixes = list(index, key + ".addressPrefixes");
+        }
+
+        private static String[] list(Properties index, String prefix) {
+            List<String> list = new ArrayList<String>();
+            for (String item; (item = index.getProperty(prefix + "." + list.size())) != null;) {
+                list.add(item);
+            }
+            return list.toArray(new String[0]);
+        }
+
+        @Override
+        public Class<? extends Annotation> annotationType() {
+            return MatchRule.class;
+        }
+
+        @Override
+        public String[] names() {
+            return names.clone();
+        }
+
+        @Override
+        public boolean ignoreCase() {
+            return ignoreCase;
+        }
+
+        @Override
+        public String protocol() {
+            return protocol;
+        }
+
+        @Override
+        public String[] addressPrefixes() {
+            return addressPrefixes.clone();
+        }
+    }
+}
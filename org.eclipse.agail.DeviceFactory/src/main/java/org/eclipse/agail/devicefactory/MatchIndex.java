@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicefactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.agail.device.base.MatchRule;
+import org.eclipse.agail.object.DeviceOverview;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable index classifying discovered devices by device type.
+ *
+ * The names of all the {@link MatchRule}s are compiled into one Aho-Corasick
+ * automaton, so a device name is scanned once whatever the number of device
+ * types. The automaton runs on lower case characters; names compared with
+ * case are checked again where they were found. The types without a rule
+ * fall back to their Matches predicate. The attributes of the rules are
+ * copied into arrays when the index is built, so that matching does not go
+ * through the annotations.
+ */
+final class MatchIndex {
+
+    protected static Logger logger = LoggerFactory.getLogger(MatchIndex.class);
+
+    static final MatchIndex EMPTY = new MatchIndex(Collections.<DeviceTypeRegistry.DeviceType> emptyList());
+
+    private static final int[] NONE = new int[0];
+
+    private final String[] ruleTypes;
+
+    /**
+     * Attributes of each rule, the protocol being null for any protocol
+     */
+    private final boolean[] ignoreCase;
+
+    private final String[] protocols;
+
+    private final String[][] addressPrefixes;
+
+    /**
+     * Rules without names, checked for every device
+     */
+    private final int[] nameless;
+
+    /**
+     * Names of the rules and the rule of each name
+     */
+    private final String[] patterns;
+
+    private final int[] patternRules;
+
+    /**
+     * Automaton transitions: sorted characters and target state of each state
+     */
+    private final char[][] chars;
+
+    private final int[][] targets;
+
+    private final int[] fail;
+
+    /**
+     * Patterns ending at each state, including through failure links
+     */
+    private final int[][] outputs;
+
+    private final List<DeviceTypeRegistry.DeviceType> fallbacks;
+
+    MatchIndex(List<DeviceTypeRegistry.DeviceType> types) {
+        List<String> ruleTypeList = new ArrayList<String>();
+        List<MatchRule> ruleList = new ArrayList<MatchRule>();
+        List<Integer> namelessList = new ArrayList<Integer>();
+        List<String> patternList = new ArrayList<String>();
+        List<Integer> patternRuleList = new ArrayList<Integer>();
+        List<DeviceTypeRegistry.DeviceType> fallbackList = new ArrayList<DeviceTypeRegistry.DeviceType>();
+        for (DeviceTypeRegistry.DeviceType type : types) {
+            if (type.rule == null) {
+                if (type.matches != null) {
+                    fallbackList.add(type);
+                }
+                continue;
+            }
+            int rule = ruleList.size();
+            ruleTypeList.add(type.name);
+            ruleList.add(type.rule);
+            boolean named = false;
+            for (String name : type.rule.names()) {
+                if (!name.isEmpty()) {
+                    patternList.add(name);
+                    patternRuleList.add(rule);
+                    named = true;
+                }
+            }
+            if (!named) {
+                namelessList.add(rule);
+            }
+        }
+        ruleTypes = ruleTypeList.toArray(new String[0]);
+        ignoreCase = new boolean[ruleList.size()];
+        protocols = new String[ruleList.size()];
+        addressPrefixes = new String[ruleList.size()][];
+        for (int rule = 0; rule < ruleList.size(); rule++) {
+            MatchRule matchRule = ruleList.get(rule);
+            ignoreCase[rule] = matchRule.ignoreCase();
+            protocols[rule] = matchRule.protocol().isEmpty() ? null : matchRule.protocol();
+            addressPrefixes[rule] = matchRule.addressPrefixes();
+        }
+        nameless = toArray(namelessList);
+        patterns = patternList.toArray(new String[0]);
+        patternRules = toArray(patternRuleList);
+        fallbacks = Collections.unmodifiableList(fallbackList);
+
+        // trie of the lower case names
+        List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        trie.add(new HashMap<Character, Integer>());
+        ends.add(new ArrayList<Integer>());
+        for (int p = 0; p < patterns.length; p++) {
+            int state = 0;
+            for (int i = 0; i < patterns[p].length(); i++) {
+                char c = Character.toLowerCase(patterns[p].charAt(i));
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(c, next);
+                    trie.add(new HashMap<Character, Integer>());
+                    ends.add(new ArrayList<Integer>());
+                }
+                state = next;
+            }
+            ends.get(state).add(p);
+        }
+
+        int size = trie.size();
+        chars = new char[size][];
+        targets = new int[size][];
+        for (int s = 0; s < size; s++) {
+            Character[] keys = trie.get(s).keySet().toArray(new Character[0]);
+            Arrays.sort(keys);
+            chars[s] = new char[keys.length];
+            targets[s] = new int[keys.length];
+            for (int k = 0; k < keys.length; k++) {
+                chars[s][k] = keys[k];
+                targets[s][k] = trie.get(s).get(keys[k]);
+            }
+        }
+
+        // failure links, breadth first so that shorter states are done first
+        fail = new int[size];
+        outputs = new int[size][];
+        outputs[0] = toArray(ends.get(0));
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        for (int target : targets[0]) {
+            fail[target] = 0;
+            outputs[target] = toArray(ends.get(target));
+            queue.add(target);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int k = 0; k < chars[state].length; k++) {
+                char c = chars[state][k];
+                int target = targets[state][k];
+                int f = fail[state];
+                while (f != 0 && next(f, c) < 0) {
+                    f = fail[f];
+                }
+                int n = next(f, c);
+                fail[target] = n < 0 ? 0 : n;
+                List<Integer> out = new ArrayList<Integer>(ends.get(target));
+                for (int p : outputs[fail[target]]) {
+                    out.add(p);
+                }
+                outputs[target] = toArray(out);
+                queue.add(target);
+            }
+        }
+        logger.debug("Compiled {} names of {} match rules into {} states, {} fallback matchers", patterns.length,
+                ruleTypes.length, size, fallbacks.size());
+    }
+
+    private int next(int state, char c) {
+        int k = Arrays.binarySearch(chars[state], c);
+        return k < 0 ? -1 : targets[state][k];
+    }
+
+    /**
+     * @return the names of the device types matching the device
+     */
+    List<String> matching(DeviceOverview deviceOverview) {
+        boolean[] hits = new boolean[ruleTypes.length];
+        String name = deviceOverview.name;
+        if (name != null && patterns.length > 0) {
+            int state = 0;
+            for (int i = 0; i < name.length(); i++) {
+                char c = Character.toLowerCase(name.charAt(i));
+                int n = next(state, c);
+                while (n < 0 && state != 0) {
+                    state = fail[state];
+                    n = next(state, c);
+                }
+                state = n < 0 ? 0 : n;
+                for (int p : outputs[state]) {
+                    int rule = patternRules[p];
+                    String pattern = patterns[p];
+                    if (!hits[rule] && (ignoreCase[rule]
+                            || name.regionMatches(i - pattern.length() + 1, pattern, 0, pattern.length()))) {
+                        hits[rule] = true;
+                    }
+                }
+            }
+        }
+        for (int rule : nameless) {
+            hits[rule] = true;
+        }
+
+        Set<String> ret = new LinkedHashSet<String>();
+        for (int rule = 0; rule < ruleTypes.length; rule++) {
+            if (hits[rule] && accepts(rule, deviceOverview)) {
+                ret.add(ruleTypes[rule]);
+            }
+        }
+        for (DeviceTypeRegistry.DeviceType type : fallbacks) {
+            try {
+                if (type.matches.test(deviceOverview)) {
+                    ret.add(type.name);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Matches of {} failed: {}", type.deviceClass.getName(), e.toString());
+            }
+        }
+        return new ArrayList<String>(ret);
+    }
+
+    /**
+     * Check the protocol and address of a rule
+     */
+    private boolean accepts(int rule, DeviceOverview deviceOverview) {
+        if (protocols[rule] != null && !protocols[rule].equals(deviceOverview.protocol)) {
+            return false;
+        }
+        if (addressPrefixes[rule].length == 0) {
+            return true;
+        }
+        if (deviceOverview.id == null) {
+            return false;
+        }
+        for (String prefix : addressPrefixes[rule]) {
+            if (deviceOverview.id.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        if (list.isEmpty()) {
+            return NONE;
+        }
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicefactory;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Class loader of a device plugin jar.
+ *
+ * The classes of the jar come first, so that a plugin can replace a device
+ * class of the factory, except for the Agile API, the base device classes
+ * and the libraries of the factory, which are always shared so that the
+ * plugin devices are devices of the factory.
+ */
+class PluginClassLoader extends URLClassLoader {
+
+    /**
+     * Packages always loaded by the factory
+     */
+    private static final String[] SHARED = { "java.", "javax.", "sun.", "org.freedesktop.", "cx.ath.matthew.",
+            "org.slf4j.", "ch.qos.logback.", "org.eclipse.agail." };
+
+    /**
+     * Packages of the shared ones the plugins provide classes of
+     */
+    private static final String[] PLUGIN = { "org.eclipse.agail.device.instance." };
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    PluginClassLoader(URL jar, ClassLoader parent) {
+        super(new URL[] { jar }, parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (shared(name)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                try {
+                    c = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    return super.loadClass(name, resolve);
+                }
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    private static boolean shared(String name) {
+        for (String prefix : PLUGIN) {
+            if (name.startsWith(prefix)) {
+                return false;
+            }
+        }
+        for (String prefix : SHARED) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
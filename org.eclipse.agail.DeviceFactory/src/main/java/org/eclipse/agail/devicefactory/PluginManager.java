@@ -0,0 +1,570 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicefactory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.eclipse.agail.Device;
+import org.eclipse.agail.DeviceManager;
+import org.eclipse.agail.device.base.DeviceImp;
+import org.eclipse.agail.devicemanager.DeviceRegistry;
+import org.eclipse.agail.object.AgileObjectInterface;
+import org.eclipse.agail.object.DeviceOverview;
+import org.freedesktop.dbus.DBusConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Device plugins: jar files dropped in a directory, each loaded by its own
+ * {@link PluginClassLoader}.
+ *
+ * The device classes of a jar are those of its
+ * {@value DeviceTypeRegistry#INDEX}, or all its top level device classes if it
+ * has none. Copying a new version of a jar over the old one upgrades the
+ * plugin: all the classes of the new version are loaded before any type is
+ * replaced, then the types of the plugin are replaced at once, and the live
+ * devices of the old classes are moved to the new ones on the same DBus path,
+ * connected and subscribed again. Deleting the jar unloads the plugin, the
+ * devices of its types are stopped and released to the device manager,
+ * which keeps them registered and creates them again once their type is
+ * back, unless the plugin replaced a type of the factory, which is then
+ * restored and takes the devices over. The devices of the other types are never
+ * touched. The devices are moved once the types are replaced, without
+ * holding up the creation of devices meanwhile.
+ *
+ * The jar is copied before being opened, so it can be overwritten while the
+ * plugin runs; copying it in place with a rename avoids loading a partly
+ * written jar. A class loader is closed once no device of its classes is
+ * left, checked after each change and every RETIRED_CHECK.
+ */
+public class PluginManager {
+
+    protected static Logger logger = LoggerFactory.getLogger(PluginManager.class);
+
+    private static final String JAR = ".jar";
+
+    /**
+     * Time without change of a jar before it is loaded, in ms
+     */
+    private static final long QUIET = 1000;
+
+    /**
+     * Interval between two checks for class loaders to close, in s
+     */
+    private static final long RETIRED_CHECK = 60;
+
+    private final DeviceTypeRegistry registry;
+
+    /**
+     * The plugin directory, null if none
+     */
+    private volatile Path directory;
+
+    /**
+     * Loaded plugins by jar file name
+     */
+    private final Map<String, Plugin> plugins = new HashMap<String, Plugin>();
+
+    /**
+     * Types of the factory replaced by a plugin, restored on unload, by key
+     */
+    private final Map<String, DeviceTypeRegistry.DeviceType> shadowed = new HashMap<String, DeviceTypeRegistry.DeviceType>();
+
+    /**
+     * Plugins upgraded or unloaded whose class loader still has devices,
+     * guarded by itself
+     */
+    private final List<Plugin> retired = new ArrayList<Plugin>();
+
+    /**
+     * The devices created, to move them to a new version of their class
+     */
+    private final Set<DeviceImp> devices = Collections.newSetFromMap(new WeakHashMap<DeviceImp, Boolean>());
+
+    /**
+     * Devices are created under the read lock, types replaced under the write
+     * lock, so a device created before an upgrade is known when its devices
+     * are moved, and none of the old types is created after
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ConcurrentMap<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "device-plugins");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Path copies;
+
+    /**
+     * A loaded plugin jar
+     */
+    private static class Plugin {
+        final String file;
+        final long modified;
+        final long size;
+        final Path copy;
+        final PluginClassLoader loader;
+        /**
+         * Types of the plugin by key
+         */
+        final Map<String, DeviceTypeRegistry.DeviceType> types;
+
+        Plugin(String file, long modified, long size, Path copy, PluginClassLoader loader,
+                Map<String, DeviceTypeRegistry.DeviceType> types) {
+            this.file = file;
+            this.modified = modified;
+            this.size = size;
+            this.copy = copy;
+            this.loader = loader;
+            this.types = types;
+        }
+    }
+
+    public PluginManager(DeviceTypeRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Load the jars of the plugin directory and watch it for changes
+     */
+    public void start(Path directory) throws IOException {
+        this.directory = directory;
+        copies = Files.createTempDirectory("agile-plugins");
+        copies.toFile().deleteOnExit();
+        WatchService watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        try (DirectoryStream<Path> jars = Files.newDirectoryStream(directory, "*" + JAR)) {
+            for (Path jar : jars) {
+                refresh(jar.getFileName().toString());
+            }
+        }
+        Thread thread = new Thread(() -> watch(watcher), "device-plugin-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        // the devices of the retired plugins may be deleted at any time
+        executor.scheduleWithFixedDelay(this::closeRetired, RETIRED_CHECK, RETIRED_CHECK, TimeUnit.SECONDS);
+        logger.info("Watching {} for device plugins", directory);
+    }
+
+    /**
+     * Create a device of the given type
+     *
+     * @see DeviceTypeRegistry#create(String, DeviceOverview)
+     */
+    public Device create(String deviceType, DeviceOverview deviceOverview) throws Exception {
+        lock.readLock().lock();
+        try {
+            Device device = registry.create(deviceType, deviceOverview);
+            if (device instanceof DeviceImp) {
+                synchronized (devices) {
+                    devices.add((DeviceImp) device);
+                }
+            }
+            return device;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void watch(WatchService watcher) {
+        for (;;) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    continue;
+                }
+                String file = ((Path) event.context()).getFileName().toString();
+                if (!file.endsWith(JAR)) {
+                    continue;
+                }
+                // a jar being copied is modified many times, wait for the last one
+                ScheduledFuture<?> previous = pending.put(file, executor.schedule(() -> {
+                    pending.remove(file);
+                    refresh(file);
+                }, QUIET, TimeUnit.MILLISECONDS));
+                if (previous != null) {
+                    previous.cancel(false);
+                }
+            }
+            if (!key.reset()) {
+                logger.warn("Plugin directory {} no longer watched", directory);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Load, upgrade or unload the plugin of a jar according to its file
+     */
+    private void refresh(String file) {
+        Path jar = directory.resolve(file);
+        Collection<DeviceTypeRegistry.DeviceType> replaced = Collections.emptyList();
+        lock.writeLock().lock();
+        try {
+            if (Files.isRegularFile(jar)) {
+                Plugin current = plugins.get(file);
+                if (current == null || current.modified != Files.getLastModifiedTime(jar).toMillis()
+                        || current.size != Files.size(jar)) {
+                    replaced = load(jar, current);
+                }
+            } else if (plugins.containsKey(file)) {
+                replaced = unload(plugins.remove(file));
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read plugin {}: {}", file, e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // devices of the previous version, or of the factory types the plugin replaces
+        List<String> stopped = new ArrayList<String>();
+        for (DeviceTypeRegistry.DeviceType type : replaced) {
+            drain(type, stopped);
+        }
+        release(stopped);
+        closeRetired();
+    }
+
+    /**
+     * Load a plugin or a new version of it, replacing its types
+     *
+     * @return the types replaced, whose devices are to be moved
+     */
+    private Collection<DeviceTypeRegistry.DeviceType> load(Path jar, Plugin current) throws IOException {
+        String file = jar.getFileName().toString();
+        long modified = Files.getLastModifiedTime(jar).toMillis();
+        long size = Files.size(jar);
+        Path copy = Files.createTempFile(copies, file.substring(0, file.length() - JAR.length()) + "-", JAR);
+        copy.toFile().deleteOnExit();
+        Files.copy(jar, copy, StandardCopyOption.REPLACE_EXISTING);
+        PluginClassLoader loader = new PluginClassLoader(copy.toUri().toURL(), PluginManager.class.getClassLoader());
+        boolean indexed = loader.findResource(DeviceTypeRegistry.INDEX) != null;
+
+        // every class of the new version is loaded before changing anything
+        Map<String, DeviceTypeRegistry.DeviceType> types = new LinkedHashMap<String, DeviceTypeRegistry.DeviceType>();
+        try {
+            for (Map.Entry<String, String> entry : classNames(loader, copy).entrySet()) {
+                Class<?> deviceClass;
+                try {
+                    deviceClass = Class.forName(entry.getValue(), true, loader);
+                } catch (ClassNotFoundException | LinkageError e) {
+                    if (indexed) {
+                        throw e;
+                    }
+                    // not necessarily a device class of a jar without index
+                    logger.debug("Class {} of {} not loaded: {}", entry.getValue(), file, e.toString());
+                    continue;
+                }
+                if (!Device.class.isAssignableFrom(deviceClass)) {
+                    continue;
+                }
+                DeviceTypeRegistry.DeviceType type = registry.resolve(entry.getKey(), deviceClass);
+                if (type == null) {
+                    continue;
+                }
+                Plugin owner = owner(type.key);
+                if (owner != null && owner != current) {
+                    logger.error("Device class {} of {} is already provided by {}, ignored", type.key, file,
+                            owner.file);
+                    continue;
+                }
+                types.put(type.key, type);
+            }
+        } catch (ClassNotFoundException | LinkageError e) {
+            logger.error("Unable to load plugin {}, keeping the current version: {}", file, e.toString());
+            discard(loader, copy);
+            return Collections.emptyList();
+        }
+        if (types.isEmpty()) {
+            logger.warn("No device class in plugin {}", file);
+            discard(loader, copy);
+            return Collections.emptyList();
+        }
+
+        List<String> removed = new ArrayList<String>();
+        List<DeviceTypeRegistry.DeviceType> added = new ArrayList<DeviceTypeRegistry.DeviceType>(types.values());
+        if (current != null) {
+            for (String key : current.types.keySet()) {
+                if (!types.containsKey(key)) {
+                    removed.add(key);
+                    DeviceTypeRegistry.DeviceType restored = shadowed.remove(key);
+                    if (restored != null) {
+                        added.add(restored);
+                    }
+                }
+            }
+        }
+        Map<String, DeviceTypeRegistry.DeviceType> previous = registry.replace(removed, added);
+        for (DeviceTypeRegistry.DeviceType type : types.values()) {
+            DeviceTypeRegistry.DeviceType replaced = previous.get(type.key);
+            if (replaced != null && (current == null || !current.types.containsKey(type.key))) {
+                shadowed.put(type.key, replaced);
+            }
+        }
+        plugins.put(file, new Plugin(file, modified, size, copy, loader, types));
+        logger.info("{} plugin {}: {}", current == null ? "Loaded" : "Upgraded", file, types.keySet());
+        if (current != null) {
+            synchronized (retired) {
+                retired.add(current);
+            }
+        }
+        return previous.values();
+    }
+
+    /**
+     * Unload a plugin, restoring the factory types it replaced
+     *
+     * @return the types removed, whose devices are to be moved or stopped
+     */
+    private Collection<DeviceTypeRegistry.DeviceType> unload(Plugin plugin) {
+        List<DeviceTypeRegistry.DeviceType> restored = new ArrayList<DeviceTypeRegistry.DeviceType>();
+        for (String key : plugin.types.keySet()) {
+            DeviceTypeRegistry.DeviceType type = shadowed.remove(key);
+            if (type != null) {
+                restored.add(type);
+            }
+        }
+        Map<String, DeviceTypeRegistry.DeviceType> previous = registry.replace(plugin.types.keySet(), restored);
+        logger.info("Unloaded plugin {}", plugin.file);
+        synchronized (retired) {
+            retired.add(plugin);
+        }
+        return previous.values();
+    }
+
+    /**
+     * Move the live devices of a replaced type to the type now registered
+     * with the same key, stop them if there is none
+     *
+     * @param stopped
+     *            collects the ids of the devices stopped
+     */
+    private void drain(DeviceTypeRegistry.DeviceType old, List<String> stopped) {
+        if (old.deviceClass == null) {
+            return;
+        }
+        DeviceTypeRegistry.DeviceType successor = registry.get(old.key);
+        for (DeviceImp device : devicesOf(old.deviceClass)) {
+            DeviceImp.Handover handover;
+            try {
+                handover = device.handOver();
+            } catch (Exception e) {
+                logger.error("Unable to stop device {}: {}", device.Id(), e.getMessage());
+                continue;
+            }
+            if (successor == null) {
+                logger.info("Device {} stopped, its type {} was unloaded", device.Id(), old.name);
+                stopped.add(device.Id());
+                continue;
+            }
+            Device next = null;
+            try {
+                next = registry.create(successor.name, handover.overview);
+            } catch (Exception e) {
+                logger.error("Unable to move device {} to the new version of {}: {}", device.Id(), old.name,
+                        e.getMessage());
+            }
+            if (next == null) {
+                // back on the old version rather than lost
+                try {
+                    next = DeviceTypeRegistry.create(old, handover.overview);
+                } catch (Exception e) {
+                    logger.error("Unable to restore device {}: {}", device.Id(), e.getMessage());
+                }
+            }
+            if (next instanceof DeviceImp) {
+                DeviceImp moved = (DeviceImp) next;
+                synchronized (devices) {
+                    devices.add(moved);
+                }
+                try {
+                    moved.watchDefinition();
+                } catch (Exception e) {
+                    logger.warn("Unable to watch the definition of {}: {}", moved.Id(), e.getMessage());
+                }
+                moved.takeOver(handover);
+                logger.info("Device {} moved to {}", moved.Id(), moved.getClass().getName());
+            }
+        }
+    }
+
+    private List<DeviceImp> devicesOf(Class<?> deviceClass) {
+        List<DeviceImp> list = new ArrayList<DeviceImp>();
+        synchronized (devices) {
+            for (Iterator<DeviceImp> i = devices.iterator(); i.hasNext();) {
+                DeviceImp device = i.next();
+                if (device.isStopped()) {
+                    i.remove();
+                } else if (device.getClass() == deviceClass) {
+                    list.add(device);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Tell the device manager the stopped devices are unavailable, keeping
+     * their registration so they come back with their type, e.g. when a jar
+     * is deleted then copied again
+     */
+    private void release(List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        DeviceRegistry registry;
+        try {
+            registry = DBusConnection.getConnection(AgileObjectInterface.DEFAULT_DBUS_CONNECTION).getRemoteObject(
+                    DeviceManager.AGILE_INTERFACE, "/" + DeviceManager.AGILE_INTERFACE.replace(".", "/"),
+                    DeviceRegistry.class);
+        } catch (Exception e) {
+            logger.error("Unable to reach the device manager, devices {} not released: {}", ids, e.getMessage());
+            return;
+        }
+        for (String id : ids) {
+            try {
+                registry.Release(id);
+                logger.info("Device {} released to the device manager", id);
+            } catch (Exception e) {
+                logger.error("Unable to release device {} to the device manager: {}", id, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close the class loaders of the retired plugins without live devices
+     */
+    private void closeRetired() {
+        synchronized (retired) {
+            for (Iterator<Plugin> i = retired.iterator(); i.hasNext();) {
+                Plugin plugin = i.next();
+                boolean used = false;
+                for (DeviceTypeRegistry.DeviceType type : plugin.types.values()) {
+                    used |= !devicesOf(type.deviceClass).isEmpty();
+                }
+                if (!used) {
+                    discard(plugin.loader, plugin.copy);
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private Plugin owner(String key) {
+        for (Plugin plugin : plugins.values()) {
+            if (plugin.types.containsKey(key)) {
+                return plugin;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The device classes of a jar by key, from its index if it has one
+     */
+    private static Map<String, String> classNames(PluginClassLoader loader, Path jar) throws IOException {
+        Map<String, String> classes = new LinkedHashMap<String, String>();
+        URL url = loader.findResource(DeviceTypeRegistry.INDEX);
+        if (url != null) {
+            Properties index = new Properties();
+            try (InputStream in = url.openStream()) {
+                index.load(in);
+            }
+            for (String property : index.stringPropertyNames()) {
+                if (property.endsWith(".class")) {
+                    classes.put(property.substring(0, property.length() - ".class".length()),
+                            index.getProperty(property));
+                }
+            }
+            return classes;
+        }
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class") && !name.contains("$") && !name.endsWith("module-info.class")) {
+                    String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                    classes.put(className.substring(className.lastIndexOf('.') + 1), className);
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static void discard(PluginClassLoader loader, Path copy) {
+        try {
+            loader.close();
+            Files.deleteIfExists(copy);
+        } catch (IOException e) {
+            logger.warn("Unable to remove {}: {}", copy, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the keys of the types of the loaded plugins by jar file name
+     */
+    public Map<String, Collection<String>> plugins() {
+        lock.readLock().lock();
+        try {
+            Map<String, Collection<String>> ret = new HashMap<String, Collection<String>>();
+            for (Plugin plugin : plugins.values()) {
+                ret.put(plugin.file, Collections.unmodifiableSet(plugin.types.keySet()));
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
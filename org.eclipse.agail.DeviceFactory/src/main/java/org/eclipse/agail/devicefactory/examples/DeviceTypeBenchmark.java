@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicefactory.examples;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.agail.Device;
+import org.eclipse.agail.device.base.DeviceImp;
+import org.eclipse.agail.device.base.MatchRule;
+import org.eclipse.agail.devicefactory.DeviceTypeRegistry;
+import org.eclipse.agail.object.DeviceOverview;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the cost of creating a device and of matching a device overview
+ * against the device types by scanning the loaded classes reflectively, as
+ * the device factory used to, with the {@link DeviceTypeRegistry}. The
+ * registry matches the bench types by their {@link MatchRule}s, the
+ * reflective scan calls their Matches methods. The
+ * devices created are not exported on DBus, so only the instantiation itself
+ * is measured.
+ */
+public class DeviceTypeBenchmark {
+
+    protected static final Logger logger = LoggerFactory.getLogger(DeviceTypeBenchmark.class);
+
+    private static final int WARMUP = 200000;
+
+    private static final int ROUNDS = 2000000;
+
+    private static final DeviceOverview OVERVIEW = new DeviceOverview("00:11:22:33:44:55",
+            "org.eclipse.agail.protocol.BLE", "Bench", "AVAILABLE");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Class> classes = new HashMap<String, Class>();
+        DeviceTypeRegistry registry = new DeviceTypeRegistry();
+        for (Class<?> c : new Class<?>[] { BenchA.class, BenchB.class, BenchC.class, BenchD.class }) {
+            classes.put(c.getSimpleName(), c);
+            registry.register(c.getSimpleName(), c);
+        }
+
+        for (int i = 0; i < WARMUP; i++) {
+            reflective(classes, "Bench D");
+            registry.create("Bench D", OVERVIEW);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            reflective(classes, "Bench D");
+        }
+        long reflective = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            registry.create("Bench D", OVERVIEW);
+        }
+        long lookup = System.nanoTime() - start;
+
+        logger.info("Reflective scan: {} ns per device", reflective / ROUNDS);
+        logger.info("Registry lookup: {} ns per device", lookup / ROUNDS);
+
+        for (int i = 0; i < WARMUP; i++) {
+            reflectiveMatching(classes);
+            registry.matching(OVERVIEW);
+        }
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            reflectiveMatching(classes);
+        }
+        reflective = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            registry.matching(OVERVIEW);
+        }
+        lookup = System.nanoTime() - start;
+
+        logger.info("Reflective Matches: {} ns per overview", reflective / ROUNDS);
+        logger.info("Registry matchers: {} ns per overview", lookup / ROUNDS);
+    }
+
+    /**
+     * Device type matching as done before the type registry
+     */
+    private static List<String> reflectiveMatching(Map<String, Class> classes) throws Exception {
+        List<String> ret = new ArrayList<String>();
+        for (Map.Entry<String, Class> entry : classes.entrySet()) {
+            Method matches = entry.getValue().getDeclaredMethod("Matches", DeviceOverview.class);
+            if ((Boolean) matches.invoke(null, OVERVIEW)) {
+                ret.add((String) entry.getValue().getField("deviceTypeName").get(entry.getValue()));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Device creation as done before the type registry
+     */
+    private static Device reflective(Map<String, Class> classes, String deviceType) throws Exception {
+        Device device = null;
+        for (Map.Entry<String, Class> entry : classes.entrySet()) {
+            String name = (String) entry.getValue().getField("deviceTypeName").get(entry.getValue());
+            if (name.equals(deviceType)) {
+                Constructor constructor = entry.getValue().getConstructor(DeviceOverview.class);
+                device = (Device) constructor.newInstance(OVERVIEW);
+            }
+        }
+        return device;
+    }
+
+    /**
+     * Device doing nothing, not exported on DBus
+     */
+    public abstract static class BenchDevice extends DeviceImp {
+
+        public BenchDevice(DeviceOverview deviceOverview) throws DBusException {
+            super(deviceOverview);
+        }
+
+        @Override
+        public void Connect() throws DBusException {
+        }
+
+        @Override
+        public void Disconnect() throws DBusException {
+        }
+
+        @Override
+        public void Execute(String commandId) {
+        }
+
+        @Override
+        protected String DeviceRead(String componentName) {
+            return null;
+        }
+
+        @Override
+        public void Write(String componentName, String payload) {
+        }
+
+        @Override
+        public List<String> Commands() {
+            return Collections.emptyList();
+        }
+    }
+
+    @MatchRule(names = "Bench A")
+    public static class BenchA extends BenchDevice {
+        public static final String deviceTypeName = "Bench A";
+
+        public BenchA(DeviceOverview deviceOverview) throws DBusException {
+            super(deviceOverview);
+        }
+
+        public static boolean Matches(DeviceOverview d) {
+            return d.name.contains(deviceTypeName);
+        }
+    }
+
+    @MatchRule(names = "Bench B")
+    public static class BenchB extends BenchDevice {
+        public static final String deviceTypeName = "Bench B";
+
+        public BenchB(DeviceOverview deviceOverview) throws DBusException {
+            super(deviceOverview);
+        }
+
+        public static boolean Matches(DeviceOverview d) {
+            return d.name.contains(deviceTypeName);
+        }
+    }
+
+    @MatchRule(names = "Bench C")
+    public static class BenchC extends BenchDevice {
+        public static final String deviceTypeName = "Bench C";
+
+        public BenchC(DeviceOverview deviceOverview) throws DBusException {
+            super(deviceOverview);
+        }
+
+        public static boolean Matches(DeviceOverview d) {
+            return d.name.contains(deviceTypeName);
+        }
+    }
+
+    @MatchRule(names = "Bench D")
+    public static class BenchD extends BenchDevice {
+        public static final String deviceTypeName = "Bench D";
+
+        public BenchD(DeviceOverview deviceOverview) throws DBusException {
+            super(deviceOverview);
+        }
+
+        public static boolean Matches(DeviceOverview d) {
+            return d.name.contains(deviceTypeName);
+        }
+    }
+}
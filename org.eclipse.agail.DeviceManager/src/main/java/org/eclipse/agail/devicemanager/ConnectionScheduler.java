@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.agail.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Schedules the {@link Device#Connect()} calls of the device manager.
+ *
+ * Each protocol has its own queue and runs at most a configured number of
+ * connects at once: CONNECT_LIMIT (default 2) for every protocol, overridden
+ * per protocol by CONNECT_LIMIT_&lt;NAME&gt;, NAME being the last segment of
+ * the protocol bus name in upper case, e.g. CONNECT_LIMIT_BLE=1. Queued
+ * connects run by priority, user initiated ones before restores. A failed
+ * connect is queued again after an exponential backoff with jitter, up to
+ * CONNECT_ATTEMPTS attempts (default 5).
+ */
+public class ConnectionScheduler {
+
+	protected final Logger logger = LoggerFactory.getLogger(ConnectionScheduler.class);
+
+	/**
+	 * Connect requested by a client of the device manager
+	 */
+	public static final int USER = 0;
+
+	/**
+	 * Connect of a device restored from the device database or imported
+	 */
+	public static final int RESTORE = 1;
+
+	private static final int DEFAULT_LIMIT = 2;
+
+	private static final int DEFAULT_ATTEMPTS = 5;
+
+	/**
+	 * Backoff before the first retry, in ms; doubled on each attempt up to
+	 * MAX_BACKOFF
+	 */
+	private static final long BASE_BACKOFF = 1000;
+
+	private static final long MAX_BACKOFF = 60 * 1000;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "device-connect");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "device-connect-retry");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final int defaultLimit = Env.getInt("CONNECT_LIMIT", DEFAULT_LIMIT, 1);
+
+	private final int attempts = Env.getInt("CONNECT_ATTEMPTS", DEFAULT_ATTEMPTS, 1);
+
+	private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+
+	/**
+	 * Queued, waiting for a retry or connecting devices by device id
+	 */
+	private final ConcurrentMap<String, Task> tasks = new ConcurrentHashMap<String, Task>();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicLong connects = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private final AtomicLong retried = new AtomicLong();
+
+	private final AtomicLong totalLatency = new AtomicLong();
+
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	private final AtomicLong totalWait = new AtomicLong();
+
+	/**
+	 * Queue a connect of the given device, unless one is already pending. A
+	 * pending restore connect is moved ahead when a user connect is requested.
+	 *
+	 * @return a future completed once the device is connected, or
+	 *         exceptionally once the scheduler gives up or the connect is
+	 *         cancelled
+	 */
+	public CompletableFuture<Void> connect(String id, String protocol, Device device, int priority) {
+		Lane lane = lane(protocol);
+		Task task;
+		synchronized (lane) {
+			Task pending = tasks.get(id);
+			if (pending != null) {
+				if (priority < pending.priority && lane.queue.remove(pending)) {
+					pending.priority = priority;
+					lane.queue.add(pending);
+				}
+				return pending.done;
+			}
+			task = new Task(id, lane, device, priority);
+			tasks.put(id, task);
+			lane.queue.add(task);
+		}
+		dispatch(lane);
+		return task.done;
+	}
+
+	/**
+	 * Drop the pending connect of a device, if any. A connect already running
+	 * is not interrupted but not retried.
+	 */
+	public void cancel(String id) {
+		Task task = tasks.remove(id);
+		if (task != null) {
+			synchronized (task.lane) {
+				task.lane.queue.remove(task);
+			}
+			task.done.completeExceptionally(new CancellationException("Connect of " + id + " cancelled"));
+		}
+	}
+
+	private Lane lane(String protocol) {
+		synchronized (lanes) {
+			Lane lane = lanes.get(protocol);
+			if (lane == null) {
+				String name = protocol.substring(protocol.lastIndexOf('.') + 1).toUpperCase();
+				lane = new Lane(protocol, Env.getInt("CONNECT_LIMIT_" + name, defaultLimit, 1));
+				lanes.put(protocol, lane);
+			}
+			return lane;
+		}
+	}
+
+	/**
+	 * Start as many queued connects of the lane as its limit allows
+	 */
+	private void dispatch(Lane lane) {
+		synchronized (lane) {
+			while (lane.active < lane.limit && !lane.queue.isEmpty()) {
+				Task task = lane.queue.poll();
+				lane.active++;
+				executor.execute(() -> run(task));
+			}
+		}
+	}
+
+	private void run(Task task) {
+		long start = System.nanoTime();
+		totalWait.addAndGet(start - task.queuedAt);
+		boolean connected = false;
+		Exception error = null;
+		try {
+			task.device.Connect();
+			connected = true;
+			long latency = System.nanoTime() - start;
+			connects.incrementAndGet();
+			totalLatency.addAndGet(latency);
+			maxLatency.accumulateAndGet(latency, Math::max);
+			logger.info("Device {} connected in {} ms", task.id, TimeUnit.NANOSECONDS.toMillis(latency));
+		} catch (Exception e) {
+			error = e;
+			failures.incrementAndGet();
+			logger.error("Error encountered while attempting to connect {}: {}", task.id, e.getMessage());
+		} finally {
+			synchronized (task.lane) {
+				task.lane.active--;
+			}
+			if (connected) {
+				tasks.remove(task.id, task);
+				task.done.complete(null);
+			} else if (!retry(task)) {
+				tasks.remove(task.id, task);
+				task.done.completeExceptionally(error != null ? error : new IllegalStateException("Connect failed"));
+			}
+			dispatch(task.lane);
+		}
+	}
+
+	/**
+	 * Queue the task again after a backoff, unless out of attempts or
+	 * cancelled
+	 *
+	 * @return true if the task will be retried
+	 */
+	private boolean retry(Task task) {
+		if (tasks.get(task.id) != task) {
+			return false;
+		}
+		if (++task.attempt >= attempts) {
+			logger.warn("Giving up connecting device {} after {} attempts", task.id, task.attempt);
+			return false;
+		}
+		long backoff = Math.min(BASE_BACKOFF << (task.attempt - 1), MAX_BACKOFF);
+		// equal jitter: half of the backoff is fixed, half random
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		retried.incrementAndGet();
+		logger.info("Retrying to connect device {} in {} ms", task.id, delay);
+		retries.schedule(() -> {
+			synchronized (task.lane) {
+				if (tasks.get(task.id) != task) {
+					return;
+				}
+				task.queuedAt = System.nanoTime();
+				task.lane.queue.add(task);
+			}
+			dispatch(task.lane);
+		}, delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * @return JSON: {"queued", "active", "pending", "connects", "failures",
+	 *         "retries", "avgLatencyMs", "maxLatencyMs", "avgWaitMs",
+	 *         "protocols": {protocol: {"limit", "queued", "active"}}}
+	 */
+	public String metrics() {
+		ObjectNode result = mapper.createObjectNode();
+		ObjectNode protocols = mapper.createObjectNode();
+		int queued = 0;
+		int active = 0;
+		synchronized (lanes) {
+			for (Lane lane : lanes.values()) {
+				synchronized (lane) {
+					ObjectNode node = protocols.putObject(lane.protocol);
+					node.put("limit", lane.limit);
+					node.put("queued", lane.queue.size());
+					node.put("active", lane.active);
+					queued += lane.queue.size();
+					active += lane.active;
+				}
+			}
+		}
+		long done = connects.get();
+		long started = done + failures.get();
+		result.put("queued", queued);
+		result.put("active", active);
+		result.put("pending", tasks.size());
+		result.put("connects", done);
+		result.put("failures", failures.get());
+		result.put("retries", retried.get());
+		result.put("avgLatencyMs", done == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatency.get() / done));
+		result.put("maxLatencyMs", TimeUnit.NANOSECONDS.toMillis(maxLatency.get()));
+		result.put("avgWaitMs", started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWait.get() / started));
+		result.set("protocols", protocols);
+		return result.toString();
+	}
+
+	/**
+	 * Connect queue of a protocol, guarded by its own lock
+	 */
+	private static class Lane {
+		final String protocol;
+		final int limit;
+		final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+		int active = 0;
+
+		Lane(String protocol, int limit) {
+			this.protocol = protocol;
+			this.limit = limit;
+		}
+	}
+
+	private class Task implements Comparable<Task> {
+		final String id;
+		final Lane lane;
+		final Device device;
+		final long order = sequence.incrementAndGet();
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		int priority;
+		int attempt = 0;
+		long queuedAt = System.nanoTime();
+
+		Task(String id, Lane lane, Device device, int priority) {
+			this.id = id;
+			this.lane = lane;
+			this.device = device;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if (priority != other.priority) {
+				return Integer.compare(priority, other.priority);
+			}
+			return Long.compare(order, other.order);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.agail.object.DeviceDefinition;
+
+/**
+ * Secondary indexes of the registered devices for {@link DeviceRegistry#Search}:
+ * by protocol, device type, connection status and name prefix.
+ *
+ * Mutations are serialized; searches run without locking. A search walks the
+ * smallest index matching its criteria and checks every candidate against the
+ * current entry of the device, so a search racing a mutation never returns a
+ * device that does not match.
+ */
+public class DeviceIndex {
+
+	private static final char SEPARATOR = '\0';
+
+	/**
+	 * Indexed state of a device, replaced as a whole on every change
+	 */
+	private static class Entry {
+		final DeviceDefinition definition;
+		final String type;
+		final String status;
+
+		Entry(DeviceDefinition definition, String type, String status) {
+			this.definition = definition;
+			this.type = type;
+			this.status = status;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final ConcurrentMap<String, Set<String>> protocols = new ConcurrentHashMap<String, Set<String>>();
+
+	private final ConcurrentMap<String, Set<String>> types = new ConcurrentHashMap<String, Set<String>>();
+
+	private final ConcurrentMap<String, Set<String>> statuses = new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * Device ids by lower case name + SEPARATOR + id
+	 */
+	private final ConcurrentNavigableMap<String, String> names = new ConcurrentSkipListMap<String, String>();
+
+	/**
+	 * Index a device, keeping its status if already indexed
+	 *
+	 * @param type
+	 *            device type, null to keep the indexed one
+	 * @param status
+	 *            status of a newly indexed device
+	 */
+	public synchronized void put(DeviceDefinition definition, String type, String status) {
+		String id = definition.deviceId.trim();
+		Entry previous = entries.get(id);
+		if (previous != null) {
+			status = previous.status;
+			if (type == null) {
+				type = previous.type;
+			}
+		}
+		replace(id, previous, new Entry(definition, type, status));
+	}
+
+	/**
+	 * Update the status of an indexed device
+	 */
+	public synchronized void setStatus(String id, String status) {
+		Entry previous = entries.get(id);
+		if (previous != null && !status.equals(previous.status)) {
+			replace(id, previous, new Entry(previous.definition, previous.type, status));
+		}
+	}
+
+	public synchronized void remove(String id) {
+		Entry previous = entries.get(id);
+		if (previous != null) {
+			replace(id, previous, null);
+		}
+	}
+
+	/**
+	 * @return the indexed type of a device, null if unknown
+	 */
+	public String type(String id) {
+		Entry entry = entries.get(id);
+		return entry == null ? null : entry.type;
+	}
+
+	private void replace(String id, Entry previous, Entry entry) {
+		if (previous != null) {
+			unindex(protocols, previous.definition.protocol, id);
+			unindex(types, previous.type, id);
+			unindex(statuses, previous.status, id);
+			names.remove(nameKey(previous.definition.name, id));
+		}
+		if (entry == null) {
+			entries.remove(id);
+			return;
+		}
+		entries.put(id, entry);
+		index(protocols, entry.definition.protocol, id);
+		index(types, entry.type, id);
+		index(statuses, entry.status, id);
+		names.put(nameKey(entry.definition.name, id), id);
+	}
+
+	private static void index(ConcurrentMap<String, Set<String>> index, String key, String id) {
+		if (key != null) {
+			index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(id);
+		}
+	}
+
+	private static void unindex(ConcurrentMap<String, Set<String>> index, String key, String id) {
+		if (key != null) {
+			index.computeIfPresent(key, (k, ids) -> {
+				ids.remove(id);
+				return ids.isEmpty() ? null : ids;
+			});
+		}
+	}
+
+	private static String nameKey(String name, String id) {
+		return (name == null ? "" : name.toLowerCase(Locale.ROOT)) + SEPARATOR + id;
+	}
+
+	/**
+	 * Find the devices matching all the given criteria, null criteria matching
+	 * any device
+	 *
+	 * @param namePrefix
+	 *            case insensitive prefix of the device name
+	 * @return the matching devices, ordered by id
+	 */
+	public List<DeviceDefinition> search(String id, String protocol, String type, String status, String namePrefix) {
+		Collection<String> candidates = null;
+		if (id != null) {
+			candidates = Collections.singleton(id.trim());
+		}
+		candidates = smallest(candidates, protocol == null ? null : lookup(protocols, protocol));
+		candidates = smallest(candidates, type == null ? null : lookup(types, type));
+		candidates = smallest(candidates, status == null ? null : lookup(statuses, status));
+		String prefix = namePrefix == null ? null : namePrefix.toLowerCase(Locale.ROOT);
+		if (prefix != null && (candidates == null || candidates.size() > 1)) {
+			// the name range is only materialized when it can narrow the search
+			Collection<String> named = names.subMap(prefix, prefix + Character.MAX_VALUE).values();
+			candidates = smallest(candidates, new ArrayList<String>(named));
+		}
+		if (candidates == null) {
+			candidates = entries.keySet();
+		}
+
+		List<Entry> matches = new ArrayList<Entry>();
+		for (String candidate : candidates) {
+			Entry entry = entries.get(candidate);
+			if (entry != null && matches(entry, protocol, type, status, prefix)) {
+				matches.add(entry);
+			}
+		}
+		matches.sort((a, b) -> a.definition.deviceId.compareTo(b.definition.deviceId));
+		List<DeviceDefinition> result = new ArrayList<DeviceDefinition>(matches.size());
+		for (Entry entry : matches) {
+			result.add(entry.definition);
+		}
+		return result;
+	}
+
+	private static Collection<String> lookup(ConcurrentMap<String, Set<String>> index, String key) {
+		Set<String> ids = index.get(key);
+		return ids == null ? Collections.<String> emptySet() : ids;
+	}
+
+	private static Collection<String> smallest(Collection<String> a, Collection<String> b) {
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		return b.size() < a.size() ? b : a;
+	}
+
+	private static boolean matches(Entry entry, String protocol, String type, String status, String prefix) {
+		return (protocol == null || protocol.equals(entry.definition.protocol))
+				&& (type == null || type.equals(entry.type))
+				&& (status == null || status.equals(entry.status))
+				&& (prefix == null || (entry.definition.name != null
+						&& entry.definition.name.toLowerCase(Locale.ROOT).startsWith(prefix)));
+	}
+}
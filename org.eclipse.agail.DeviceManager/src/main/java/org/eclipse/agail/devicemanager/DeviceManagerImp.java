@@ -12,31 +12,63 @@
  ******************************************************************************/
 package org.eclipse.agail.devicemanager;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.agail.Device;
 import org.eclipse.agail.DeviceFactory;
 import org.eclipse.agail.DeviceManager;
+import org.eclipse.agail.devicemanager.jsondb.DeviceStore;
+import org.eclipse.agail.devicemanager.jsondb.DeviceStores;
 import org.eclipse.agail.devicemanager.jsondb.DeviceWithType;
-import org.eclipse.agail.devicemanager.jsondb.JsonDB;
 import org.eclipse.agail.exception.AgileDeviceNotFoundException;
 import org.eclipse.agail.object.AbstractAgileObject;
 import org.eclipse.agail.object.DeviceDefinition;
 import org.eclipse.agail.object.DeviceOverview;
+import org.eclipse.agail.object.DeviceStatusType;
+import org.freedesktop.DBus.Error.ServiceUnknown;
+import org.freedesktop.DBus.Error.UnknownObject;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 /**
  * @author dagi
  *
  *         Agile Device manager implementation
  *
  */
-public class DeviceManagerImp extends AbstractAgileObject implements DeviceManager {
+public class DeviceManagerImp extends AbstractAgileObject implements DeviceManager, DeviceRegistry {
 
 	protected final Logger logger = LoggerFactory.getLogger(DeviceManagerImp.class);
 
@@ -50,14 +82,108 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	private static final String AGILE_DEVICEMANAGER_MANAGER_BUS_PATH = "/org/eclipse/agail/DeviceManager";
 
 	/**
-	 * registered devices
+	 * registered devices by device id, warmed from the definitions stored in
+	 * the database. Mutated only under the lock of this object, read without
+	 * locking.
+	 */
+	protected final ConcurrentMap<String, DeviceDefinition> devices = new ConcurrentHashMap<String, DeviceDefinition>();
+
+	/**
+	 * Device ids by protocol and address, see {@link #addressKey}
+	 */
+	private final ConcurrentMap<String, String> addresses = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Ids of the devices instantiated on the bus since startup, as opposed to
+	 * only known from their stored definition
+	 */
+	private final Set<String> instantiated = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Locks serializing the registrations of the same device
 	 */
-	protected final List<DeviceDefinition> devices = new ArrayList<DeviceDefinition>();
+	private final ConcurrentMap<String, Object> registering = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Immutable copy of the {@link #devices} values, replaced on every change
+	 */
+	private volatile List<DeviceDefinition> snapshot = Collections.emptyList();
 
 	//List of available device factories
 	private static List<Map<String, String>> factoryList= new ArrayList<>();
 
-	private JsonDB db;
+	private DeviceStore db;
+
+	private RegistryChangeFeed changes;
+
+	private ProxyCache proxies;
+
+	private static final String DEVICE_BUS_NAME = "org.eclipse.agail.Device";
+
+	private final ConnectionScheduler connections = new ConnectionScheduler();
+
+	/**
+	 * Search indexes of the registered devices
+	 */
+	private final DeviceIndex search = new DeviceIndex();
+
+	/**
+	 * Page size of searches that do not give a limit
+	 */
+	private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+	private RestorePipeline restore;
+
+	private LivenessMonitor liveness;
+
+	private static final String REGISTER = "register";
+
+	private static final String DELETE = "delete";
+
+	private static final String CONNECT = "connect";
+
+	private static final String DISCONNECT = "disconnect";
+
+	private static final String READ = "read";
+
+	/**
+	 * Search status of a device released by its factory
+	 */
+	private static final String UNAVAILABLE = "UNAVAILABLE";
+
+	private static final List<String> BATCH_OPERATIONS = Arrays.asList(REGISTER, DELETE, CONNECT, DISCONNECT, READ);
+
+	/**
+	 * Time a batch waits for its items, in seconds
+	 */
+	private static final long BATCH_TIMEOUT = 60;
+
+	/**
+	 * Runs the items of batches, BATCH_THREADS at once (default 8)
+	 */
+	private final ExecutorService batchPool = Executors.newFixedThreadPool(Env.getInt("BATCH_THREADS", 8, 1), r -> {
+		Thread thread = new Thread(r, "device-batch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Time the device factories have to answer a query, in ms
+	 */
+	private static final long FACTORY_TIMEOUT = Env.getLong("FACTORY_TIMEOUT", 2000, 1);
+
+	/**
+	 * Queries the device factories in parallel
+	 */
+	private final ExecutorService factoryPool = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "device-factory-query");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static final ObjectReader deviceReader = mapper.readerFor(DeviceWithType.class);
 
 	public static void main(String[] args) throws DBusException {
 		DeviceManager deviceManager = new DeviceManagerImp();
@@ -68,11 +194,36 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 		dbusConnect(AGILE_DEVICEMANAGER_MANAGER_BUS_NAME, AGILE_DEVICEMANAGER_MANAGER_BUS_PATH, this);
 		logger.debug("Started Device Manager");
 
-		db = new JsonDB();
+		changes = new RegistryChangeFeed(connection, AGILE_DEVICEMANAGER_MANAGER_BUS_PATH);
+		proxies = new ProxyCache(connection);
+		db = DeviceStores.open();
+		List<DeviceWithType> stored = db.readData();
+		synchronized (this) {
+			for (DeviceWithType dev : stored) {
+				if (dev.getDeviceDefinition() != null) {
+					index(dev.getDeviceDefinition(), dev.getDeviceType());
+				}
+			}
+			snapshot = Collections.unmodifiableList(new ArrayList<DeviceDefinition>(devices.values()));
+		}
+		logger.info("Devices {} restored from the device database", snapshot.size());
 		//TODO : get  device factories from a properties file or ...
 		Map<String,String> map = new HashMap<>();
 		map.put("org.eclipse.agail.DeviceFactory","/org/eclipse/agail/DeviceFactory");
 		AddFactoryToList(map);
+		restore = new RestorePipeline(stored, dev -> db.getDevice(dev.getDeviceOverview().getId()) == null
+				|| restore(dev), connection, AGILE_DEVICEMANAGER_MANAGER_BUS_PATH);
+		restore.start();
+		liveness = new LivenessMonitor(search, id -> instantiated.contains(id) ? getDevice(devices.get(id)) : null,
+				id -> {
+					DeviceDefinition definition = Read(id);
+					Device device = getDevice(definition);
+					if (device == null) {
+						throw new AgileDeviceNotFoundException("Device " + id + " is not instantiated");
+					}
+					return connect(id, definition.protocol, device, ConnectionScheduler.USER);
+				});
+		liveness.start(connection);
 	}
 
 	/**
@@ -82,41 +233,119 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	 */
 	@Override
 	public String Find() {
-		// TODO
-		return null;
+		return Search("{}");
 	}
 
+	/**
+	 * Ask every device factory at once, merging their answers in factory
+	 * order. A factory not answering within FACTORY_TIMEOUT ms (default 2000)
+	 * is left out.
+	 *
+	 * @see org.eclipse.agail.DeviceManager#MatchingDeviceTypes(org.eclipse.agail.object.DeviceOverview)
+	 */
 	@Override
 	public List<String> MatchingDeviceTypes(DeviceOverview deviceOverview) {
-		List<String> ret = new ArrayList();
-		try{
-		    String objectName = "org.eclipse.agail.DeviceFactory";
-      		    String objectPath = "/org/eclipse/agail/DeviceFactory";
-      		    logger.info("Connection established: "+connection);
-		    for (Map<String, String> m : factoryList){
-			    for (Map.Entry<String, String> entry : m.entrySet()){
-				      logger.debug("Getting device factory with name = " + entry.getKey() + ", and path = " + entry.getValue());
-					    DeviceFactory factory = (DeviceFactory) connection.getRemoteObject(entry.getKey(), entry.getValue(),DeviceFactory.class);
-					    ret=factory.MatchingDeviceTypes(deviceOverview);
-			    }
-		    }
-        	}
-		catch (Exception e) {
-            	    logger.error("Can not connect to the DeviceFactory DBus object: {}", e.getMessage());
-    	            e.printStackTrace();
-    		}
-		return ret;
+		Map<Map.Entry<String, String>, CompletableFuture<List<String>>> answers = new LinkedHashMap<>();
+		for (Map<String, String> m : factoryList) {
+			for (Map.Entry<String, String> entry : m.entrySet()) {
+				logger.debug("Getting device factory with name = " + entry.getKey() + ", and path = " + entry.getValue());
+				answers.put(entry, CompletableFuture.supplyAsync(() -> {
+					try {
+						return factory(entry.getKey(), entry.getValue()).MatchingDeviceTypes(deviceOverview);
+					} catch (UnknownObject | ServiceUnknown e) {
+						proxies.invalidate(entry.getKey(), entry.getValue());
+						throw e;
+					} catch (DBusException e) {
+						throw new CompletionException(e);
+					}
+				}, factoryPool));
+			}
+		}
+		Set<String> ret = new LinkedHashSet<String>();
+		// one deadline for all factories, they run in parallel
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FACTORY_TIMEOUT);
+		for (Map.Entry<Map.Entry<String, String>, CompletableFuture<List<String>>> answer : answers.entrySet()) {
+			try {
+				List<String> types = answer.getValue().get(Math.max(0, deadline - System.nanoTime()),
+						TimeUnit.NANOSECONDS);
+				if (types != null) {
+					ret.addAll(types);
+				}
+			} catch (TimeoutException e) {
+				logger.warn("Device factory {} did not answer within {} ms", answer.getKey().getKey(), FACTORY_TIMEOUT);
+			} catch (ExecutionException e) {
+				logger.error("Can not connect to the DeviceFactory DBus object {}: {}", answer.getKey().getKey(),
+						e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return new ArrayList<String>(ret);
 	}
 
 
 	@Override
 	public DeviceDefinition Register(DeviceOverview deviceOverview, String deviceType) {
+		return register(deviceOverview, deviceType, ConnectionScheduler.USER, null);
+	}
+
+	/**
+	 * Register a device, its connect being scheduled with the given
+	 * {@link ConnectionScheduler} priority
+	 *
+	 * @param batch
+	 *            collects the devices to store for a batch, a batch never
+	 *            stored for a device already stored, null to store the device
+	 *            right away
+	 */
+	private DeviceDefinition register(DeviceOverview deviceOverview, String deviceType, int priority,
+			BatchWrites batch) {
+		String key = addressKey(deviceOverview.getProtocol(), deviceOverview.getId());
+		DeviceDefinition known = registered(key);
+		if (known != null) {
+			logger.info("Device already registered:  {}", known.deviceId);
+			return known;
+		}
+		synchronized (registering.computeIfAbsent(key, k -> new Object())) {
+			// registered by a concurrent call while waiting
+			known = registered(key);
+			if (known != null) {
+				return known;
+			}
+			return createDevice(deviceOverview, deviceType, priority, batch);
+		}
+	}
+
+	/**
+	 * @return the definition of the device instantiated with the given
+	 *         {@link #addressKey}, null if none
+	 */
+	private DeviceDefinition registered(String key) {
+		String id = addresses.get(key);
+		return id != null && instantiated.contains(id) ? devices.get(id) : null;
+	}
+
+	private DeviceDefinition createDevice(DeviceOverview deviceOverview, String deviceType, int priority,
+			BatchWrites batch) {
 		Device device = getDevice(deviceOverview);
 		DeviceDefinition registeredDev = null;
 		if (device != null) {
-			registeredDev = device.Definition();
-			logger.info("Device already registered:  {}", device.Id());
-		} else {
+			try {
+				registeredDev = device.Definition();
+				putDefinition(registeredDev, deviceType);
+				logger.info("Device already registered:  {}", device.Id());
+			} catch (UnknownObject e) {
+				// cached proxy of a device removed since
+				proxies.invalidate(DEVICE_BUS_NAME, devicePath(deviceOverview.getProtocol(), deviceOverview.id));
+				device = getDevice(deviceOverview);
+				if (device != null) {
+					registeredDev = device.Definition();
+					putDefinition(registeredDev, deviceType);
+				}
+			}
+		}
+		if (device == null) {
 			try {
 				logger.info("HEXIWEAR - Checking device type: " + deviceType + " and overview " + deviceOverview);
 
@@ -127,15 +356,24 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 					for (Map.Entry<String, String> entry : m.entrySet())
 					{
 						  logger.debug("Getting device factory with name = " + entry.getKey() + ", and path = " + entry.getValue());
-							DeviceFactory factory = (DeviceFactory) connection.getRemoteObject(entry.getKey(), entry.getValue(),
-									DeviceFactory.class);
-							device = factory.getDevice(deviceType, deviceOverview);
+							DeviceFactory factory = factory(entry.getKey(), entry.getValue());
+							try {
+								device = factory.getDevice(deviceType, deviceOverview);
+							} catch (UnknownObject | ServiceUnknown e) {
+								proxies.invalidate(entry.getKey(), entry.getValue());
+								throw e;
+							}
 							logger.info("Creating new device: {}", deviceType);
 							if (device != null) {
 								registeredDev = device.Definition();
-								db.saveDevice(deviceOverview, deviceType);
-								devices.add(registeredDev);
-								logger.info("Created new device: {}", devices);
+								DeviceWithType stored = new DeviceWithType(deviceType, deviceOverview, registeredDev);
+								if (batch != null) {
+									batch.put(stored);
+								} else {
+									db.putDevice(stored);
+								}
+								putDefinition(registeredDev, deviceType);
+								logger.info("Created new device: {}", registeredDev.deviceId);
 							}
 					}
 				}
@@ -145,19 +383,8 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 			}
 		}
 		// connect device
-		if (device != null) {
-			final Device dev = device;
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						dev.Connect();
-						logger.info("Device connected");
-					} catch (Exception e) {
-						logger.error("Error encountered while attempting to connect: {}", e.getMessage());
-					}
-				}
-			}).start();
+		if (device != null && registeredDev != null) {
+			connect(registeredDev.deviceId.trim(), deviceOverview.getProtocol(), device, priority);
 		}
 		return registeredDev;
 	}
@@ -170,12 +397,11 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	 */
 	@Override
 	public DeviceDefinition Read(String id) {
-		for (DeviceDefinition dd : devices) {
-			if (dd.deviceId.trim().equals(id)) {
-				return dd;
-			}
+		DeviceDefinition dd = devices.get(id.trim());
+		if (dd == null) {
+			throw new AgileDeviceNotFoundException("Device not found");
 		}
-		throw new AgileDeviceNotFoundException("Device not found");
+		return dd;
 	}
 
 	/**
@@ -186,7 +412,70 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	 */
 	@Override
 	public void Update(String id, DeviceDefinition definition) {
-		logger.debug("DeviceManager.Update not implemented");
+		update(Read(id), definition);
+	}
+
+	/**
+	 * Patch the name, description and profile of a device in place. The
+	 * identity of the device (id, address, protocol and path) cannot change,
+	 * null fields of the patch are left unchanged. The stored record of the
+	 * device is rewritten and the live device object follows the
+	 * {@link RegistryChangedSignal#UPDATED} change, so the device stays connected.
+	 *
+	 * @return the updated definition
+	 */
+	private DeviceDefinition update(DeviceDefinition current, DeviceDefinition patch) {
+		String id = current.deviceId.trim();
+		if ((patch.deviceId != null && !patch.deviceId.trim().equals(id))
+				|| (patch.address != null && !patch.address.equals(current.address))
+				|| (patch.protocol != null && !patch.protocol.equals(current.protocol))) {
+			throw new IllegalArgumentException("The id, address and protocol of device " + id + " cannot be updated");
+		}
+		DeviceDefinition updated = new DeviceDefinition(current.deviceId, current.address,
+				patch.name != null ? patch.name : current.name,
+				patch.description != null ? patch.description : current.description, current.protocol, current.path,
+				patch.streams != null ? patch.streams : current.streams);
+		if (updated.equals(current)) {
+			return current;
+		}
+		synchronized (registering.computeIfAbsent(addressKey(current.protocol, current.address), k -> new Object())) {
+			DeviceWithType stored = db.getRecord(current.address);
+			if (stored != null) {
+				DeviceOverview overview = stored.getDeviceOverview();
+				String type = search.type(id);
+				// the overview name is the one a restored device starts with
+				db.putDevice(new DeviceWithType(type != null ? type : stored.getDeviceType(),
+						new DeviceOverview(overview.id, overview.protocol, updated.name, overview.status), updated));
+			}
+			publishDefinition(updated, null);
+		}
+		logger.info("Device {} updated", id);
+		return updated;
+	}
+
+	/**
+	 * Restore a stored device, applying the stored definition if it was
+	 * updated since the device registered, and storing the definition of the
+	 * device if the record has none or another one, e.g. an imported device
+	 *
+	 * @return false if the device could not be restored
+	 */
+	private boolean restore(DeviceWithType device) {
+		// the device is already in the store, its record rewritten below
+		DeviceDefinition live = register(device.getDeviceOverview(), device.getDeviceType(),
+				ConnectionScheduler.RESTORE, new BatchWrites());
+		if (live == null) {
+			return false;
+		}
+		DeviceDefinition stored = device.getDeviceDefinition();
+		if (stored != null && !stored.equals(live)) {
+			live = update(live, new DeviceDefinition(null, null, stored.name, stored.description, null, null,
+					stored.streams));
+		}
+		if (!live.equals(stored)) {
+			db.putDevice(new DeviceWithType(device.getDeviceType(), device.getDeviceOverview(), live));
+		}
+		return true;
 	}
 
 	/**
@@ -196,16 +485,94 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	 */
 	@Override
 	public List<DeviceDefinition> Devices() {
-		List<DeviceWithType> devs = db.readData();
-		logger.info("******************** Devices {} fround in jsonDB.", devs.size());
-		for (int i = 0; i < devs.size(); i++) {
-			DeviceWithType dev = devs.get(i);
-			Register(dev.getDeviceOverview(), dev.getDeviceType());
-			// logger.info("Devices (id= {}, name= {}) with type ({}) fround in jsonDB.",
-			// dev.getDeviceOverview().id, dev.getDeviceOverview().name,
-			// dev.getDeviceType());
+		return snapshot;
+	}
+
+	/**
+	 * Add the definition of an instantiated device, replacing the one with the
+	 * same id if any, and publish the change unless the definition is
+	 * unchanged
+	 */
+	private synchronized void putDefinition(DeviceDefinition definition, String type) {
+		instantiated.add(definition.deviceId.trim());
+		publishDefinition(definition, type);
+	}
+
+	/**
+	 * Index a definition and publish the change unless the definition is
+	 * unchanged
+	 */
+	private synchronized void publishDefinition(DeviceDefinition definition, String type) {
+		DeviceDefinition previous = index(definition, type);
+		if (definition.equals(previous)) {
+			return;
+		}
+		snapshot = Collections.unmodifiableList(new ArrayList<DeviceDefinition>(devices.values()));
+		changes.publish(previous == null ? RegistryChangedSignal.REGISTERED : RegistryChangedSignal.UPDATED,
+				definition.deviceId, definition);
+	}
+
+	/**
+	 * Remove a device definition and publish the change
+	 */
+	private synchronized void removeDefinition(DeviceDefinition definition) {
+		String id = definition.deviceId.trim();
+		instantiated.remove(id);
+		if (devices.remove(id, definition)) {
+			addresses.remove(addressKey(definition.protocol, definition.address), id);
+			search.remove(id);
+			if (liveness != null) {
+				liveness.remove(id);
+			}
+			snapshot = Collections.unmodifiableList(new ArrayList<DeviceDefinition>(devices.values()));
+			changes.publish(RegistryChangedSignal.DELETED, definition.deviceId, null);
 		}
-		return devices;
+	}
+
+	/**
+	 * Add a definition to the indexes
+	 *
+	 * @param type
+	 *            device type, null if unknown
+	 * @return the definition previously held for the same id
+	 */
+	private DeviceDefinition index(DeviceDefinition definition, String type) {
+		String id = definition.deviceId.trim();
+		DeviceDefinition previous = devices.put(id, definition);
+		if (previous != null) {
+			addresses.remove(addressKey(previous.protocol, previous.address), id);
+		}
+		addresses.put(addressKey(definition.protocol, definition.address), id);
+		search.put(definition, type, DeviceStatusType.DISCONNECTED.toString());
+		return previous;
+	}
+
+	/**
+	 * Schedule the connect of a device, tracking its connection status in the
+	 * search index
+	 */
+	private CompletableFuture<Void> connect(String id, String protocol, Device device, int priority) {
+		CompletableFuture<Void> connected = connections.connect(id, protocol, device, priority);
+		connected.whenComplete((v, e) -> {
+			if (e == null) {
+				search.setStatus(id, DeviceStatusType.CONNECTED.toString());
+			} else if (!(e instanceof CancellationException)) {
+				search.setStatus(id, DeviceStatusType.ERROR.toString());
+				DeviceDefinition definition = devices.get(id);
+				if (e instanceof UnknownObject && definition != null) {
+					proxies.invalidate(DEVICE_BUS_NAME, devicePath(protocol, definition.address));
+				}
+			}
+		});
+		return connected;
+	}
+
+	/**
+	 * Secondary key of a device: its protocol and its address, the address
+	 * being the id of the {@code DeviceOverview} it was registered from
+	 */
+	private static String addressKey(String protocol, String address) {
+		return protocol + "/" + address;
 	}
 
 	/**
@@ -220,19 +587,41 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 		DeviceDefinition devDefn = Read(id);
 		logger.info("Device deleted: {}, {}, {}", devDefn.deviceId, devDefn.getAddress(), devDefn.name);
 		if (devDefn != null) {
-			Device device = getDevice(devDefn);
-			if (device != null) {
-				try {
-					device.Stop();
-					devices.remove(devDefn);
-					db.deletDevice(devDefn.getAddress());
-					logger.info("Device deleted: {}", id);
-				} catch (Exception e) {
-				    logger.error("Unable to delete device: {}", id);
-				    e.printStackTrace();
-				}
+			try {
+				delete(devDefn, null);
+				logger.info("Device deleted: {}", id);
+			} catch (Exception e) {
+			    logger.error("Unable to delete device: {}", id);
+			    e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stop and remove a device
+	 *
+	 * @param batch
+	 *            collects the device ids to remove from the store for a batch,
+	 *            null to remove the device right away
+	 */
+	private void delete(DeviceDefinition devDefn, BatchWrites batch) throws DBusException {
+		// a device only known from its stored definition has nothing to stop
+		Device device = instantiated.contains(devDefn.deviceId.trim()) ? getDevice(devDefn) : null;
+		if (device != null) {
+			try {
+				device.Stop();
+			} catch (UnknownObject e) {
+				logger.debug("Device {} already gone", devDefn.deviceId);
 			}
 		}
+		proxies.invalidate(DEVICE_BUS_NAME, devicePath(devDefn.getProtocol(), devDefn.address));
+		connections.cancel(devDefn.deviceId.trim());
+		removeDefinition(devDefn);
+		if (batch != null) {
+			batch.delete(devDefn.getAddress());
+		} else {
+			db.deletDevice(devDefn.getAddress());
+		}
 	}
 
 	/**
@@ -243,7 +632,383 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	 */
 	@Override
 	public void Batch(String operation, String arguments) {
-		logger.debug("DeviceManager.Batch not implemented");
+		logger.info("Batch {}: {}", operation, RunBatch(operation, arguments));
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#RunBatch(java.lang.String,
+	 *      java.lang.String)
+	 */
+	@Override
+	public String RunBatch(String operation, String arguments) {
+		JsonNode items;
+		try {
+			items = mapper.readTree(arguments);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid batch arguments: " + e.getMessage(), e);
+		}
+		if (items == null || !items.isArray()) {
+			throw new IllegalArgumentException("Batch arguments must be a JSON array");
+		}
+		if (!BATCH_OPERATIONS.contains(operation)) {
+			throw new IllegalArgumentException("Unknown batch operation " + operation);
+		}
+		BatchWrites batch = new BatchWrites();
+		List<CompletableFuture<JsonNode>> results = new ArrayList<CompletableFuture<JsonNode>>();
+		for (JsonNode item : items) {
+			results.add(batchItem(operation, item, batch));
+		}
+		try {
+			CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()])).get(BATCH_TIMEOUT,
+					TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			logger.warn("Batch {} timed out after {} s", operation, BATCH_TIMEOUT);
+			// the items still running are reported as timed out, and store
+			// their own changes if they complete later
+			for (CompletableFuture<JsonNode> result : results) {
+				result.cancel(false);
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			// failed items are reported one by one
+		}
+
+		ObjectNode report = mapper.createObjectNode();
+		report.put("operation", operation);
+		ArrayNode list = mapper.createArrayNode();
+		int succeeded = 0;
+		for (int i = 0; i < results.size(); i++) {
+			ObjectNode result = list.addObject();
+			result.put("index", i);
+			result.put("id", items.get(i).isTextual() ? items.get(i).asText()
+					: items.get(i).path("overview").path("id").asText(null));
+			CompletableFuture<JsonNode> future = results.get(i);
+			if (future.isCancelled()) {
+				result.put("ok", false);
+				result.put("error", "Timed out");
+				continue;
+			}
+			try {
+				result.set("result", future.join());
+				result.put("ok", true);
+				succeeded++;
+			} catch (CompletionException | CancellationException e) {
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				result.put("ok", false);
+				result.put("error", cause.getMessage() != null ? cause.getMessage() : cause.toString());
+			}
+		}
+		// single flush of everything the batch changed
+		try {
+			batch.store().get();
+		} catch (InterruptedException | ExecutionException e) {
+			logger.error("Unable to store batch {}: {}", operation, e.getMessage());
+			throw new IllegalStateException("Unable to store batch " + operation, e);
+		}
+		report.put("succeeded", succeeded);
+		report.put("failed", results.size() - succeeded);
+		report.set("results", list);
+		return report.toString();
+	}
+
+	/**
+	 * Run one item of a batch on the batch pool
+	 */
+	private CompletableFuture<JsonNode> batchItem(String operation, JsonNode item, BatchWrites batch) {
+		if (REGISTER.equals(operation)) {
+			return CompletableFuture.supplyAsync(() -> {
+				DeviceOverview overview;
+				try {
+					overview = mapper.treeToValue(item.path("overview"), DeviceOverview.class);
+				} catch (JsonProcessingException e) {
+					throw new IllegalArgumentException("Invalid overview: " + e.getOriginalMessage());
+				}
+				String type = item.path("type").asText(null);
+				if (overview == null || overview.getId() == null || type == null) {
+					throw new IllegalArgumentException("Expected {\"overview\": ..., \"type\": ...}");
+				}
+				DeviceDefinition definition = register(overview, type, ConnectionScheduler.USER, batch);
+				if (definition == null) {
+					throw new IllegalStateException("Device could not be registered");
+				}
+				return mapper.valueToTree(definition);
+			}, batchPool);
+		}
+		CompletableFuture<DeviceDefinition> definition = CompletableFuture.supplyAsync(() -> Read(item.asText()),
+				batchPool);
+		if (DELETE.equals(operation)) {
+			return definition.thenApplyAsync(dd -> {
+				try {
+					delete(dd, batch);
+				} catch (DBusException e) {
+					throw new CompletionException(e);
+				}
+				return NullNode.getInstance();
+			}, batchPool);
+		}
+		CompletableFuture<Device> device = definition.thenApply(dd -> {
+			Device dev = instantiated.contains(dd.deviceId.trim()) ? getDevice(dd) : null;
+			if (dev == null) {
+				throw new IllegalStateException("Device " + dd.deviceId + " is not instantiated");
+			}
+			return dev;
+		});
+		if (CONNECT.equals(operation)) {
+			return definition.thenCombine(device, (dd, dev) -> connect(dd.deviceId.trim(), dd.protocol, dev,
+					ConnectionScheduler.USER)).thenCompose(connected -> connected)
+					.thenApply(v -> (JsonNode) NullNode.getInstance());
+		}
+		if (DISCONNECT.equals(operation)) {
+			return definition.thenCombineAsync(device, (dd, dev) -> {
+				try {
+					dev.Disconnect();
+				} catch (DBusException e) {
+					throw new CompletionException(e);
+				}
+				search.setStatus(dd.deviceId.trim(), DeviceStatusType.DISCONNECTED.toString());
+				return NullNode.getInstance();
+			}, batchPool);
+		}
+		return definition.thenCombineAsync(device, (dd, dev) -> {
+			liveness.access(dd.deviceId.trim());
+			return (JsonNode) mapper.valueToTree(dev.ReadAll());
+		}, batchPool);
+	}
+
+	/**
+	 * Registry changes of a batch, stored with a single write once the batch
+	 * is over. A change made after that, by an item that timed out, is stored
+	 * right away.
+	 */
+	private final class BatchWrites {
+		private final List<DeviceWithType> put = new ArrayList<DeviceWithType>();
+		private final List<String> delete = new ArrayList<String>();
+		private boolean stored = false;
+
+		synchronized void put(DeviceWithType device) {
+			if (stored) {
+				db.putDevice(device);
+			} else {
+				put.add(device);
+			}
+		}
+
+		synchronized void delete(String id) {
+			if (stored) {
+				db.deletDevice(id);
+			} else {
+				delete.add(id);
+			}
+		}
+
+		synchronized CompletableFuture<Void> store() {
+			stored = true;
+			return db.writeBatch(put, delete);
+		}
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#Import(java.lang.String)
+	 */
+	@Override
+	public String Import(String devices) {
+		ObjectNode report = mapper.createObjectNode();
+		ArrayNode errors = mapper.createArrayNode();
+		List<DeviceWithType> valid = new ArrayList<DeviceWithType>();
+		Set<String> ids = new HashSet<String>();
+		try (JsonParser parser = mapper.getFactory().createParser(devices)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				throw new IllegalArgumentException("Expected a JSON array of devices");
+			}
+			int index = 0;
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				// each entry is read as a tree first, so that a bad entry does not
+				// leave the parser in the middle of it
+				JsonNode entry = parser.readValueAsTree();
+				String error;
+				DeviceWithType device = null;
+				try {
+					device = deviceReader.treeToValue(entry, DeviceWithType.class);
+					error = validate(device, ids);
+				} catch (JsonProcessingException e) {
+					error = e.getOriginalMessage();
+				}
+				if (error == null) {
+					valid.add(device);
+				} else {
+					ObjectNode item = errors.addObject();
+					item.put("index", index);
+					item.put("id", entry.path("deviceOverview").path("id").asText(null));
+					item.put("error", error);
+				}
+				index++;
+			}
+			int imported = db.saveDevices(valid).get();
+			report.put("imported", imported);
+			report.put("skipped", valid.size() - imported);
+			report.set("errors", errors);
+			logger.info("Imported {} devices, {} already registered, {} rejected", imported, valid.size() - imported,
+					errors.size());
+		} catch (Exception e) {
+			logger.error("Unable to import devices: {}", e.getMessage());
+			throw new IllegalArgumentException("Unable to import devices: " + e.getMessage(), e);
+		}
+
+		// bring the imported devices up without holding the caller, like the
+		// stored ones at startup
+		restore.submit(valid);
+		return report.toString();
+	}
+
+	/**
+	 * @return why the device cannot be imported, or null if it can
+	 */
+	private static String validate(DeviceWithType device, Set<String> ids) {
+		if (device == null || device.getDeviceOverview() == null) {
+			return "Missing deviceOverview";
+		}
+		DeviceOverview overview = device.getDeviceOverview();
+		if (overview.getId() == null || overview.getId().trim().isEmpty()) {
+			return "Missing device id";
+		}
+		if (overview.getProtocol() == null || overview.getProtocol().trim().isEmpty()) {
+			return "Missing device protocol";
+		}
+		if (device.getDeviceType() == null || device.getDeviceType().trim().isEmpty()) {
+			return "Missing deviceType";
+		}
+		if (!ids.add(overview.getId())) {
+			return "Duplicate device id";
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#Export(int, int)
+	 */
+	@Override
+	public String Export(int offset, int limit) {
+		List<DeviceWithType> devs = db.readData();
+		devs.sort(Comparator.comparing(d -> d.getDeviceOverview().getId()));
+		int from = Math.min(Math.max(offset, 0), devs.size());
+		int to = (int) Math.min((long) from + Math.max(limit, 0), devs.size());
+		try {
+			return mapper.writeValueAsString(devs.subList(from, to));
+		} catch (IOException e) {
+			logger.error("Unable to export devices: {}", e.getMessage());
+			throw new IllegalStateException("Unable to export devices", e);
+		}
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#Changes(long)
+	 */
+	@Override
+	public String Changes(long since) {
+		return changes.since(since);
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#Search(java.lang.String)
+	 */
+	@Override
+	public String Search(String query) {
+		JsonNode q;
+		try {
+			q = mapper.readTree(query == null || query.isEmpty() ? "{}" : query);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid search query: " + e.getMessage(), e);
+		}
+		List<DeviceDefinition> found = search.search(q.path("id").asText(null), q.path("protocol").asText(null),
+				q.path("type").asText(null), q.path("status").asText(null), q.path("name").asText(null));
+		int offset = Math.max(q.path("offset").asInt(0), 0);
+		int limit = q.path("limit").asInt(DEFAULT_SEARCH_LIMIT);
+		if (limit < 0) {
+			limit = DEFAULT_SEARCH_LIMIT;
+		}
+		int from = Math.min(offset, found.size());
+		int to = (int) Math.min((long) from + limit, found.size());
+		ObjectNode result = mapper.createObjectNode();
+		result.put("total", found.size());
+		result.put("offset", from);
+		result.put("limit", limit);
+		result.set("devices", mapper.valueToTree(found.subList(from, to)));
+		return result.toString();
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#ConnectionMetrics()
+	 */
+	@Override
+	public String ConnectionMetrics() {
+		return connections.metrics();
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#Touch(java.lang.String)
+	 */
+	@Override
+	public void Touch(String id) {
+		liveness.access(Read(id).deviceId.trim());
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#Subscription(java.lang.String,
+	 *      boolean)
+	 */
+	@Override
+	public void Subscription(String id, boolean active) {
+		liveness.subscription(Read(id).deviceId.trim(), active);
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#Release(java.lang.String)
+	 */
+	@Override
+	public void Release(String id) {
+		DeviceDefinition definition = Read(id);
+		String deviceId = definition.deviceId.trim();
+		synchronized (registering.computeIfAbsent(addressKey(definition.protocol, definition.address),
+				k -> new Object())) {
+			if (!instantiated.remove(deviceId)) {
+				return;
+			}
+			proxies.invalidate(DEVICE_BUS_NAME, devicePath(definition.protocol, definition.address));
+			connections.cancel(deviceId);
+			search.setStatus(deviceId, UNAVAILABLE);
+		}
+		logger.info("Device {} released by its factory, restoring it once its type is back", deviceId);
+		DeviceWithType stored = db.getRecord(definition.address);
+		if (stored != null) {
+			restore.submit(Collections.singletonList(stored));
+		}
+	}
+
+	/**
+	 *
+	 *
+	 * @see org.eclipse.agail.devicemanager.DeviceRegistry#RestoreStatus()
+	 */
+	@Override
+	public String RestoreStatus() {
+		return restore.status();
 	}
 
 	/**
@@ -264,11 +1029,8 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	 * @return
 	 */
 	private Device getDevice(DeviceDefinition devDef) {
-		String objectName = "org.eclipse.agail.Device";
-    String objectPath = "/org/eclipse/agail/Device/"+devDef.getProtocol().replace("org.eclipse.agail.protocol.", "").toLowerCase() + devDef.address.replace(":", "");
-     try {
-			Device device = (Device) connection.getRemoteObject(objectName, objectPath);
-			return device;
+		try {
+			return proxies.get(DEVICE_BUS_NAME, devicePath(devDef.getProtocol(), devDef.address), null);
 		} catch (Exception e) {
 			return null;
 		}
@@ -283,17 +1045,26 @@ public class DeviceManagerImp extends AbstractAgileObject implements DeviceManag
 	 * @return
 	 */
 	private Device getDevice(DeviceOverview devOverview) {
-		String objectName = "org.eclipse.agail.Device";
-		String objectPath = "/org/eclipse/agail/Device/"+devOverview.getProtocol().replace("org.eclipse.agail.protocol.", "").toLowerCase() + devOverview.id.replace(":", "");
- 		try {
-			Device device = (Device) connection.getRemoteObject(objectName, objectPath);
-			return device;
+		try {
+			return proxies.get(DEVICE_BUS_NAME, devicePath(devOverview.getProtocol(), devOverview.id), null);
 		} catch (Exception e) {
 			return null;
 		}
 
 	}
 
+	/**
+	 * Object path of a device exported by a device factory
+	 */
+	private static String devicePath(String protocol, String address) {
+		return "/org/eclipse/agail/Device/" + protocol.replace("org.eclipse.agail.protocol.", "").toLowerCase()
+				+ address.replace(":", "");
+	}
+
+	private DeviceFactory factory(String busName, String path) throws DBusException {
+		return proxies.get(busName, path, DeviceFactory.class);
+	}
+
 
 	/**
 	 * Add a device factory to the list.
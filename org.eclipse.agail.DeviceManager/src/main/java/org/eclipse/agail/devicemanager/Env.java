@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings of the device manager read from environment variables. An invalid
+ * value is logged and replaced by the default, so that a typo never keeps
+ * the device manager from starting.
+ */
+public final class Env {
+
+	private static final Logger logger = LoggerFactory.getLogger(Env.class);
+
+	private Env() {
+	}
+
+	/**
+	 * @return the value of the variable, the default if it is not set
+	 */
+	public static String get(String name, String defaultValue) {
+		String value = System.getenv(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @return the value of the variable, the default if it is not set, not a
+	 *         number or lower than min
+	 */
+	public static int getInt(String name, int defaultValue, int min) {
+		return (int) parse(name, defaultValue, min, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the value of the variable, the default if it is not set, not a
+	 *         number or lower than min
+	 */
+	public static long getLong(String name, long defaultValue, long min) {
+		return parse(name, defaultValue, min, Long.MAX_VALUE);
+	}
+
+	private static long parse(String name, long defaultValue, long min, long max) {
+		String value = System.getenv(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			long parsed = Long.parseLong(value.trim());
+			if (parsed >= min && parsed <= max) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {
+			// logged below
+		}
+		logger.warn("Invalid {} {}, using {}", name, value, defaultValue);
+		return defaultValue;
+	}
+}
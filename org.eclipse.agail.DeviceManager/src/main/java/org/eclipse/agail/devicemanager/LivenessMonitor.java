@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.eclipse.agail.Device;
+import org.eclipse.agail.object.DeviceDefinition;
+import org.eclipse.agail.object.DeviceStatusType;
+import org.freedesktop.dbus.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disconnects the devices nobody uses.
+ *
+ * Every LIVENESS_INTERVAL seconds (default 60) the connected devices are
+ * checked. A device without subscriptions that was not accessed for
+ * IDLE_TIMEOUT seconds (default 600) is disconnected; a device that sent no
+ * data ({@link Device#LastSeen()}) for STALE_TIMEOUT seconds (default 3600)
+ * is disconnected and marked {@link #STALE}. A timeout of 0 turns the check
+ * off. A device disconnected by the monitor is connected again on its next
+ * {@link #access}.
+ *
+ * Accesses are reported by the clients through {@link DeviceRegistry#Touch}
+ * and {@link DeviceRegistry#Subscription}; values published by subscribed
+ * devices count as accesses too.
+ */
+public class LivenessMonitor {
+
+	protected final Logger logger = LoggerFactory.getLogger(LivenessMonitor.class);
+
+	/**
+	 * Search status of the devices disconnected for not sending data
+	 */
+	public static final String STALE = "STALE";
+
+	/**
+	 * Time an access waits for the device to connect again, in seconds
+	 */
+	private static final long RECONNECT_WAIT = 10;
+
+	private final long idleTimeout = TimeUnit.SECONDS.toMillis(Env.getLong("IDLE_TIMEOUT", 600, 0));
+
+	private final long staleTimeout = TimeUnit.SECONDS.toMillis(Env.getLong("STALE_TIMEOUT", 3600, 0));
+
+	private final long interval = Env.getLong("LIVENESS_INTERVAL", 60, 1);
+
+	private final DeviceIndex search;
+
+	/**
+	 * Proxy of an instantiated device by id, null if none
+	 */
+	private final Function<String, Device> devices;
+
+	/**
+	 * Schedules the connect of a device by id
+	 */
+	private final Function<String, CompletableFuture<Void>> reconnect;
+
+	private final ConcurrentMap<String, Liveness> states = new ConcurrentHashMap<String, Liveness>();
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "device-liveness");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public LivenessMonitor(DeviceIndex search, Function<String, Device> devices,
+			Function<String, CompletableFuture<Void>> reconnect) {
+		this.search = search;
+		this.devices = devices;
+		this.reconnect = reconnect;
+	}
+
+	/**
+	 * Start checking the devices, and count the values published by
+	 * subscribed devices as accesses
+	 */
+	public void start(DBusConnection connection) {
+		if (connection != null) {
+			try {
+				connection.addSigHandler(Device.NewSubscribeValueSignal.class,
+						signal -> state(signal.record.getDeviceID()).lastAccess = System.currentTimeMillis());
+			} catch (DBusException e) {
+				logger.error("Unable to watch subscribed values: {}", e.getMessage());
+			}
+		}
+		if (idleTimeout == 0 && staleTimeout == 0) {
+			logger.info("Liveness monitor disabled");
+			return;
+		}
+		timer.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Record an access to a device, connecting it again if the monitor
+	 * disconnected it
+	 */
+	public void access(String id) {
+		Liveness state = state(id);
+		state.lastAccess = System.currentTimeMillis();
+		if (!state.parked) {
+			return;
+		}
+		state.parked = false;
+		logger.info("Device {} accessed, connecting it again", id);
+		try {
+			reconnect.apply(id).get(RECONNECT_WAIT, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			logger.warn("Device {} not connected again within {} s", id, RECONNECT_WAIT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.error("Unable to connect device {} again: {}", id, e.getMessage());
+		}
+	}
+
+	/**
+	 * Record a subscription to a device or its end; a device with
+	 * subscriptions is never idle
+	 */
+	public void subscription(String id, boolean active) {
+		Liveness state = state(id);
+		if (active) {
+			state.subscriptions.incrementAndGet();
+			access(id);
+		} else {
+			state.subscriptions.updateAndGet(count -> Math.max(0, count - 1));
+			state.lastAccess = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Forget a deleted device
+	 */
+	public void remove(String id) {
+		states.remove(id);
+	}
+
+	private Liveness state(String id) {
+		return states.computeIfAbsent(id, k -> new Liveness());
+	}
+
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		for (DeviceDefinition definition : search.search(null, null, null, DeviceStatusType.CONNECTED.toString(),
+				null)) {
+			String id = definition.deviceId.trim();
+			Liveness state = state(id);
+			if (state.subscriptions.get() > 0) {
+				continue;
+			}
+			Device device = devices.apply(id);
+			if (device == null) {
+				continue;
+			}
+			try {
+				long unseen = staleTimeout > 0 ? now - lastSeen(device, state) : 0;
+				if (staleTimeout > 0 && unseen > staleTimeout) {
+					logger.info("Device {} not seen for {} s, disconnecting", id, TimeUnit.MILLISECONDS.toSeconds(unseen));
+					park(id, device, state, STALE);
+				} else if (idleTimeout > 0 && now - state.lastAccess > idleTimeout) {
+					logger.info("Device {} idle for {} s, disconnecting", id,
+							TimeUnit.MILLISECONDS.toSeconds(now - state.lastAccess));
+					park(id, device, state, DeviceStatusType.DISCONNECTED.toString());
+				}
+			} catch (Exception e) {
+				logger.error("Unable to check device {}: {}", id, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Time the device last sent data, the time it was last accessed if never
+	 */
+	private static long lastSeen(Device device, Liveness state) {
+		try {
+			return Math.max(device.LastSeen(), state.lastAccess);
+		} catch (RuntimeException e) {
+			return state.lastAccess;
+		}
+	}
+
+	private void park(String id, Device device, Liveness state, String status) throws DBusException {
+		state.parked = true;
+		device.Disconnect();
+		search.setStatus(id, status);
+	}
+
+	/**
+	 * Usage of a device, times in ms
+	 */
+	private static class Liveness {
+		volatile long lastAccess = System.currentTimeMillis();
+		final AtomicInteger subscriptions = new AtomicInteger();
+		volatile boolean parked = false;
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.DBusConnection;
+import org.freedesktop.dbus.DBusInterface;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the DBus proxies of the device factories and devices.
+ *
+ * Creating a proxy costs a round trip to introspect the remote object, so
+ * proxies are kept by bus name and object path. All the proxies of a bus name
+ * are dropped when its owner changes, e.g. when the device factory restarts,
+ * and a single proxy is dropped with {@link #invalidate} when a call on it
+ * fails with {@link DBus.Error.UnknownObject}.
+ */
+public class ProxyCache {
+
+	protected final Logger logger = LoggerFactory.getLogger(ProxyCache.class);
+
+	private static final char SEPARATOR = '\0';
+
+	private final DBusConnection connection;
+
+	private final ConcurrentMap<String, DBusInterface> proxies = new ConcurrentHashMap<String, DBusInterface>();
+
+	public ProxyCache(DBusConnection connection) {
+		this.connection = connection;
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.addSigHandler(DBus.NameOwnerChanged.class, signal -> invalidateName(signal.name));
+		} catch (DBusException e) {
+			logger.error("Unable to watch bus name owners, proxies will not be refreshed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Get the proxy of a remote object, creating it on first use
+	 *
+	 * @param type
+	 *            interface of the object, null to introspect it, which fails
+	 *            if the object does not exist
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends DBusInterface> T get(String busName, String path, Class<T> type) throws DBusException {
+		String key = busName + SEPARATOR + path;
+		DBusInterface proxy = proxies.get(key);
+		if (proxy == null) {
+			proxy = type == null ? connection.getRemoteObject(busName, path)
+					: connection.getRemoteObject(busName, path, type);
+			DBusInterface raced = proxies.putIfAbsent(key, proxy);
+			if (raced != null) {
+				proxy = raced;
+			}
+		}
+		return (T) proxy;
+	}
+
+	/**
+	 * Drop the proxy of a remote object
+	 */
+	public void invalidate(String busName, String path) {
+		if (proxies.remove(busName + SEPARATOR + path) != null) {
+			logger.debug("Dropped proxy of {} {}", busName, path);
+		}
+	}
+
+	/**
+	 * Drop all the proxies of a bus name
+	 */
+	public void invalidateName(String busName) {
+		String prefix = busName + SEPARATOR;
+		if (proxies.keySet().removeIf(key -> key.startsWith(prefix))) {
+			logger.info("Owner of {} changed, dropped its proxies", busName);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.eclipse.agail.object.DeviceDefinition;
+import org.freedesktop.dbus.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sequenced feed of the device registry changes.
+ *
+ * Every change gets the next sequence number, is emitted as a
+ * {@link DeviceRegistry.RegistryChangedSignal} and is kept in a bounded
+ * backlog for clients catching up through {@link DeviceRegistry#Changes}.
+ * Sequence numbers start from the boot time in milliseconds, so they keep
+ * growing across restarts and a client holding a sequence number from a
+ * previous run is told to reload the registry.
+ */
+public class RegistryChangeFeed {
+
+	protected final Logger logger = LoggerFactory.getLogger(RegistryChangeFeed.class);
+
+	/**
+	 * Number of changes kept for clients catching up
+	 */
+	private static final int BACKLOG_SIZE = 1024;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final DBusConnection connection;
+
+	private final String path;
+
+	private final Deque<ObjectNode> backlog = new ArrayDeque<ObjectNode>(BACKLOG_SIZE);
+
+	private long sequence = System.currentTimeMillis();
+
+	public RegistryChangeFeed(DBusConnection connection, String path) {
+		this.connection = connection;
+		this.path = path;
+	}
+
+	/**
+	 * Record a change and emit it on the bus
+	 *
+	 * @param definition
+	 *            the new definition of the device, null if deleted
+	 */
+	public synchronized void publish(String event, String deviceId, DeviceDefinition definition) {
+		ObjectNode change = mapper.createObjectNode();
+		change.put("sequence", ++sequence);
+		change.put("event", event);
+		change.put("deviceId", deviceId);
+		change.set("definition", mapper.valueToTree(definition));
+		if (backlog.size() == BACKLOG_SIZE) {
+			backlog.removeFirst();
+		}
+		backlog.addLast(change);
+		logger.debug("Registry change {}: {} {}", sequence, event, deviceId);
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.sendSignal(
+					new DeviceRegistry.RegistryChangedSignal(path, sequence, event, deviceId, change.toString()));
+		} catch (DBusException e) {
+			logger.error("Unable to emit registry change {}: {}", sequence, e.getMessage());
+		}
+	}
+
+	/**
+	 * @see DeviceRegistry#Changes(long)
+	 */
+	public synchronized String since(long since) {
+		ObjectNode result = mapper.createObjectNode();
+		result.put("sequence", sequence);
+		long first = backlog.isEmpty() ? sequence + 1 : backlog.getFirst().get("sequence").asLong();
+		// since == 0 asks for whatever is held, the client reloads anyway
+		result.put("complete", since != 0 && since + 1 >= first && since <= sequence);
+		ArrayNode changes = result.putArray("changes");
+		for (ObjectNode change : backlog) {
+			if (change.get("sequence").asLong() > since) {
+				changes.add(change);
+			}
+		}
+		return result.toString();
+	}
+}
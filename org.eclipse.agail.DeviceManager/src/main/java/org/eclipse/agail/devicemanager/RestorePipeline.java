@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.eclipse.agail.devicemanager.jsondb.DeviceWithType;
+import org.freedesktop.dbus.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Re-instantiates the stored devices at startup.
+ *
+ * The devices read from the store are grouped by protocol and interleaved, so
+ * that a slow protocol does not hold the others back, then restored by
+ * RESTORE_THREADS threads (default 4). Progress is published as
+ * {@link DeviceRegistry.RestoreProgressSignal}s and through
+ * {@link #status()}. Devices that cannot be restored in the first pass, e.g.
+ * because the device factory is not up yet, are retried in the background
+ * with a growing delay, up to RESTORE_MAX_ATTEMPTS attempts (default 10),
+ * after which they are reported as failed for good. Devices stored later
+ * without being registered, e.g. imported ones, are
+ * {@link #submit(List) submitted} to the same threads.
+ */
+public class RestorePipeline {
+
+	protected final Logger logger = LoggerFactory.getLogger(RestorePipeline.class);
+
+	public static final String WARMING = "warming";
+
+	public static final String READY = "ready";
+
+	private static final int DEFAULT_THREADS = 4;
+
+	private static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+	/**
+	 * Minimum interval between two progress signals, in ms
+	 */
+	private static final long PROGRESS_INTERVAL = 500;
+
+	/**
+	 * Delay before retrying the devices that could not be restored, in ms;
+	 * doubled after each failed attempt up to MAX_RETRY_DELAY
+	 */
+	private static final long RETRY_DELAY = 5000;
+
+	private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final List<DeviceWithType> devices;
+
+	/**
+	 * Restores a device, false if it could not be restored
+	 */
+	private final Predicate<DeviceWithType> restore;
+
+	private final DBusConnection connection;
+
+	private final String path;
+
+	private final AtomicInteger total = new AtomicInteger();
+
+	private final AtomicInteger restored = new AtomicInteger();
+
+	/**
+	 * Devices waiting for a retry
+	 */
+	private final ConcurrentLinkedQueue<DeviceWithType> failed = new ConcurrentLinkedQueue<DeviceWithType>();
+
+	/**
+	 * Failed attempts by device id
+	 */
+	private final ConcurrentMap<String, Integer> attempts = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Devices no longer retried
+	 */
+	private final AtomicInteger abandoned = new AtomicInteger();
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	private volatile String state = WARMING;
+
+	private ScheduledExecutorService pool;
+
+	private final AtomicBoolean retrying = new AtomicBoolean(false);
+
+	private volatile long retryDelay = RETRY_DELAY;
+
+	private long lastProgress = 0;
+
+	public RestorePipeline(List<DeviceWithType> devices, Predicate<DeviceWithType> restore, DBusConnection connection,
+			String path) {
+		this.devices = devices;
+		this.restore = restore;
+		this.connection = connection;
+		this.path = path;
+	}
+
+	/**
+	 * Start restoring in the background
+	 */
+	public void start() {
+		int threads = Env.getInt("RESTORE_THREADS", DEFAULT_THREADS, 1);
+		maxAttempts = Env.getInt("RESTORE_MAX_ATTEMPTS", DEFAULT_MAX_ATTEMPTS, 1);
+		AtomicInteger count = new AtomicInteger();
+		pool = Executors.newScheduledThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "device-restore-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		logger.info("Restoring {} devices with {} threads", devices.size(), threads);
+		long start = System.currentTimeMillis();
+		CountDownLatch firstPass = new CountDownLatch(devices.size());
+		submit(devices, firstPass);
+		Thread waiter = new Thread(() -> {
+			try {
+				firstPass.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			state = READY;
+			progress(true);
+			logger.info("Restored {}/{} devices in {} ms", restored.get(), devices.size(),
+					System.currentTimeMillis() - start);
+			scheduleRetry();
+		}, "device-restore");
+		waiter.setDaemon(true);
+		waiter.start();
+	}
+
+	/**
+	 * Restore more devices in the background, along with the stored ones, once
+	 * {@link #start()} was called
+	 */
+	public void submit(List<DeviceWithType> more) {
+		submit(more, null);
+	}
+
+	private void submit(List<DeviceWithType> batch, CountDownLatch done) {
+		total.addAndGet(batch.size());
+		for (DeviceWithType device : interleave(batch)) {
+			pool.execute(() -> {
+				try {
+					attempt(device);
+				} finally {
+					if (done != null) {
+						done.countDown();
+					}
+				}
+				progress(false);
+				if (state == READY) {
+					scheduleRetry();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Restore a device, queueing it for a retry if it fails and attempts are
+	 * left
+	 */
+	private void attempt(DeviceWithType device) {
+		String id = device.getDeviceOverview().getId();
+		if (restore.test(device)) {
+			attempts.remove(id);
+			restored.incrementAndGet();
+			return;
+		}
+		int count = attempts.merge(id, 1, Integer::sum);
+		if (count < maxAttempts) {
+			failed.add(device);
+		} else {
+			attempts.remove(id);
+			abandoned.incrementAndGet();
+			logger.error("Device {} not restored after {} attempts, giving up", id, count);
+		}
+	}
+
+	/**
+	 * Order the devices protocol by protocol in turn
+	 */
+	private static List<DeviceWithType> interleave(List<DeviceWithType> devices) {
+		Map<String, Deque<DeviceWithType>> groups = new LinkedHashMap<String, Deque<DeviceWithType>>();
+		for (DeviceWithType device : devices) {
+			groups.computeIfAbsent(device.getDeviceOverview().getProtocol(), p -> new ArrayDeque<DeviceWithType>())
+					.add(device);
+		}
+		List<DeviceWithType> result = new ArrayList<DeviceWithType>(devices.size());
+		while (!groups.isEmpty()) {
+			for (Iterator<Deque<DeviceWithType>> it = groups.values().iterator(); it.hasNext();) {
+				Deque<DeviceWithType> group = it.next();
+				result.add(group.poll());
+				if (group.isEmpty()) {
+					it.remove();
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Retry the failed devices after the current delay, unless a retry is
+	 * already scheduled
+	 */
+	private void scheduleRetry() {
+		if (failed.isEmpty() || !retrying.compareAndSet(false, true)) {
+			return;
+		}
+		logger.warn("Devices {} not restored, retrying in {} ms", failed.size(), retryDelay);
+		pool.schedule(this::retryFailed, retryDelay, TimeUnit.MILLISECONDS);
+	}
+
+	private void retryFailed() {
+		for (int i = failed.size(); i > 0; i--) {
+			DeviceWithType device = failed.poll();
+			if (device == null) {
+				break;
+			}
+			attempt(device);
+		}
+		progress(true);
+		retryDelay = failed.isEmpty() ? RETRY_DELAY : Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+		retrying.set(false);
+		scheduleRetry();
+	}
+
+	/**
+	 * Emit a progress signal, at most every PROGRESS_INTERVAL unless forced
+	 */
+	private synchronized void progress(boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now - lastProgress < PROGRESS_INTERVAL) {
+			return;
+		}
+		lastProgress = now;
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.sendSignal(new DeviceRegistry.RestoreProgressSignal(path, state, restored.get(),
+					failed.size() + abandoned.get(), total.get()));
+		} catch (DBusException e) {
+			logger.error("Unable to emit restore progress: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return JSON: {"state": "warming" or "ready", "restored", "failed",
+	 *         "retrying": failed devices still retried, "total"}
+	 */
+	public String status() {
+		ObjectNode result = mapper.createObjectNode();
+		result.put("state", state);
+		result.put("restored", restored.get());
+		result.put("failed", failed.size() + abandoned.get());
+		result.put("retrying", failed.size());
+		result.put("total", total.get());
+		return result.toString();
+	}
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager.examples;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.eclipse.agail.devicemanager.jsondb.BinaryDB;
+import org.eclipse.agail.devicemanager.jsondb.DeviceStore;
+import org.eclipse.agail.devicemanager.jsondb.DeviceWithType;
+import org.eclipse.agail.devicemanager.jsondb.JsonDB;
+import org.eclipse.agail.devicemanager.jsondb.MVStoreDB;
+import org.eclipse.agail.object.DeviceOverview;
+
+/**
+ * Hammers the device stores from many threads at once and checks that no
+ * registration or deletion is lost, both in memory and after reopening the
+ * store from disk.
+ *
+ * Every thread registers its own devices, deletes every other one and looks
+ * up and lists devices in between; the stores are expected to end up holding
+ * exactly the devices that were not deleted.
+ */
+public class DeviceStoreStress {
+
+	protected static final Logger logger = LoggerFactory.getLogger(DeviceStoreStress.class);
+
+	private static final int THREADS = 32;
+
+	private static final int DEVICES_PER_THREAD = 200;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("devicestore-stress").toFile();
+		File jsonFile = new File(dir, "devices.json");
+		File binFile = new File(dir, "devices.bin");
+
+		File mvFile = new File(dir, "devices.mv.db");
+
+		boolean ok = check("json", new JsonDB(jsonFile.getPath()), () -> new JsonDB(jsonFile.getPath()));
+		ok &= check("binary", new BinaryDB(binFile), () -> new BinaryDB(binFile));
+		MVStoreDB mvStore = new MVStoreDB(mvFile);
+		ok &= check("mvstore", mvStore, () -> {
+			mvStore.close();
+			return new MVStoreDB(mvFile);
+		});
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean check(String name, DeviceStore store, Callable<DeviceStore> reopen) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<CompletableFuture<Void>>> results = new ArrayList<Future<CompletableFuture<Void>>>();
+		long begin = System.nanoTime();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			results.add(executor.submit(() -> {
+				start.await();
+				CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+				for (int i = 0; i < DEVICES_PER_THREAD; i++) {
+					DeviceOverview dev = new DeviceOverview(id(thread, i), "org.eclipse.agail.protocol.Dummy",
+							"Dummy " + thread + "/" + i, "");
+					last = store.saveDevice(dev, "Dummy");
+					if (store.getDevice(dev.getId()) == null) {
+						throw new IllegalStateException("Device " + dev.getId() + " not found after save");
+					}
+					if (i % 2 == 1) {
+						last = store.deletDevice(id(thread, i - 1));
+					}
+					if (i % 50 == 0) {
+						store.readData();
+					}
+				}
+				return last;
+			}));
+		}
+		start.countDown();
+		for (Future<CompletableFuture<Void>> result : results) {
+			result.get().get();
+		}
+		executor.shutdown();
+		long elapsed = System.nanoTime() - begin;
+
+		Set<String> expected = new HashSet<String>();
+		for (int t = 0; t < THREADS; t++) {
+			for (int i = 1; i < DEVICES_PER_THREAD; i += 2) {
+				expected.add(id(t, i));
+			}
+		}
+		boolean ok = same(name + " in memory", expected, store.readData());
+		ok &= same(name + " on disk", expected, reopen.call().readData());
+		System.out.println(String.format("%s: %d threads x %d devices in %.1f ms: %s", name, THREADS,
+				DEVICES_PER_THREAD, elapsed / 1e6, ok ? "OK" : "FAILED"));
+		return ok;
+	}
+
+	private static boolean same(String what, Set<String> expected, List<DeviceWithType> actual) {
+		Set<String> ids = new HashSet<String>();
+		for (DeviceWithType d : actual) {
+			ids.add(d.getDeviceOverview().getId());
+		}
+		if (!ids.equals(expected) || ids.size() != actual.size()) {
+			logger.error("{}: expected {} devices, found {} ({} entries)", what, expected.size(), ids.size(),
+					actual.size());
+			return false;
+		}
+		return true;
+	}
+
+	private static String id(int thread, int i) {
+		return String.format("00:00:00:%02X:%02X:%02X", thread, (i >> 8) & 0xff, i & 0xff);
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.eclipse.agail.devicemanager.jsondb.BinaryDB;
+import org.eclipse.agail.devicemanager.jsondb.JsonDB;
+import org.eclipse.agail.devicemanager.jsondb.JsonToBinaryMigrator;
+import org.eclipse.agail.object.DeviceOverview;
+
+/**
+ * Compares the time needed to restore the device registry from the JSON and
+ * from the binary device store, for 100, 1k and 10k devices.
+ */
+public class RestoreBenchmark {
+
+	protected static final Logger logger = LoggerFactory.getLogger(RestoreBenchmark.class);
+
+	private static final int[] SIZES = { 100, 1000, 10000 };
+
+	private static final int ROUNDS = 10;
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		File dir = Files.createTempDirectory("restore-benchmark").toFile();
+		for (int size : SIZES) {
+			File jsonFile = new File(dir, "devices-" + size + ".json");
+			File binFile = new File(dir, "devices-" + size + ".bin");
+
+			JsonDB db = new JsonDB(jsonFile.getPath());
+			CompletableFuture<Void> saved = null;
+			for (int i = 0; i < size; i++) {
+				String address = String.format("00:00:00:%02X:%02X:%02X", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+				saved = db.saveDevice(
+						new DeviceOverview(address, "org.eclipse.agail.protocol.BLE", "SensorTag " + i, "AVAILABLE"),
+						"TI SensorTag");
+			}
+			saved.get();
+			JsonToBinaryMigrator.migrate(jsonFile, binFile);
+
+			// warm up
+			new JsonDB(jsonFile.getPath()).readData();
+			new BinaryDB(binFile).readData();
+
+			long json = 0;
+			long bin = 0;
+			for (int r = 0; r < ROUNDS; r++) {
+				long start = System.nanoTime();
+				new JsonDB(jsonFile.getPath()).readData();
+				json += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				new BinaryDB(binFile).readData();
+				bin += System.nanoTime() - start;
+			}
+			System.out.println(String.format("%6d devices: json %8.2f ms (%d bytes), binary %8.2f ms (%d bytes)", size,
+					json / ROUNDS / 1e6, jsonFile.length(), bin / ROUNDS / 1e6, binFile.length()));
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.agail.object.DeviceOverview;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Device database stored in a compact, length-prefixed binary file.
+ *
+ * The file starts with a magic number and a format version, followed by
+ * records of the form [int length][byte kind][payload]. A LIVE record holds a
+ * device encoded by {@link DeviceRecordCodec}, a DELETED record holds the id
+ * of a removed device. Mutations are appended, a later LIVE record replacing
+ * an earlier one with the same id; the file is rewritten once dead records
+ * outnumber the live ones, aside and renamed over it. At startup the file is
+ * scanned once through a {@link MappedByteBuffer} into an in-memory index; a
+ * torn last record is cut off once the scan is done.
+ *
+ * Like {@link JsonDB}, lookups are lock-free, mutations are serialized by a
+ * write lock and {@link #readData()} shares a read lock.
+ */
+public class BinaryDB implements DeviceStore {
+
+	protected final Logger logger = LoggerFactory.getLogger(BinaryDB.class);
+
+	static final int MAGIC = 0x41474442;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 8;
+
+	static final byte LIVE = 1;
+
+	static final byte DELETED = 2;
+
+	/**
+	 * Minimum number of deleted records before the file is compacted
+	 */
+	private static final int MIN_COMPACTION = 64;
+
+	private final File file;
+
+	/**
+	 * Registered devices indexed by device id
+	 */
+	private final ConcurrentMap<String, DeviceWithType> index = new ConcurrentHashMap<String, DeviceWithType>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private FileChannel channel;
+
+	/**
+	 * Records in the file that no longer describe a live device
+	 */
+	private int deadRecords = 0;
+
+	public BinaryDB(File file) throws IOException {
+		this.file = file;
+		if (file.length() == 0) {
+			write(file, index.values());
+		}
+		long torn = load();
+		if (torn >= 0) {
+			// the mapping of the scan is no longer referenced
+			truncate(torn);
+		}
+		channel();
+		logger.info("Devices {} found in {}.", index.size(), file);
+	}
+
+	/**
+	 * Scan the file into the index
+	 *
+	 * @return the offset of a torn last record to truncate the file at, -1 if
+	 *         none
+	 */
+	private long load() throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+				throw new IOException("Not a device database: " + file);
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported device database version " + version + ": " + file);
+			}
+			while (buffer.remaining() >= 4) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				if (length < 1 || length > buffer.remaining()) {
+					// a torn last record is expected after a crash mid-append
+					logger.warn("Truncating incomplete record at offset {} in {}", start, file);
+					return start;
+				}
+				ByteBuffer record = buffer.slice();
+				record.limit(length);
+				buffer.position(buffer.position() + length);
+				byte kind = record.get();
+				if (kind == LIVE) {
+					DeviceWithType device = DeviceRecordCodec.decode(record);
+					if (index.put(device.getDeviceOverview().getId(), device) != null) {
+						deadRecords++;
+					}
+				} else if (kind == DELETED) {
+					index.remove(DeviceRecordCodec.getString(record));
+					deadRecords += 2;
+				}
+			}
+			if (buffer.hasRemaining()) {
+				// part of the length of a record torn mid-append
+				logger.warn("Truncating incomplete record at offset {} in {}", buffer.position(), file);
+				return buffer.position();
+			}
+		}
+		return -1;
+	}
+
+	private void truncate(long size) throws IOException {
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			out.truncate(size);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> saveDevice(DeviceOverview dev, String type) {
+		DeviceWithType device = new DeviceWithType(type, dev);
+		lock.writeLock().lock();
+		try {
+			if (index.putIfAbsent(dev.getId(), device) == null) {
+				return append(Collections.singletonList(record(LIVE, DeviceRecordCodec.encode(device))));
+			}
+			return CompletableFuture.completedFuture(null);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> putDevice(DeviceWithType device) {
+		lock.writeLock().lock();
+		try {
+			if (index.put(device.getDeviceOverview().getId(), device) != null) {
+				deadRecords++;
+			}
+			return flush(Collections.singletonList(record(LIVE, DeviceRecordCodec.encode(device))));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Integer> saveDevices(Collection<DeviceWithType> devices) {
+		List<byte[]> records = new ArrayList<byte[]>();
+		lock.writeLock().lock();
+		try {
+			for (DeviceWithType device : devices) {
+				if (index.putIfAbsent(device.getDeviceOverview().getId(), device) == null) {
+					records.add(record(LIVE, DeviceRecordCodec.encode(device)));
+				}
+			}
+			if (records.isEmpty()) {
+				return CompletableFuture.completedFuture(0);
+			}
+			return append(records).thenApply(v -> records.size());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> writeBatch(Collection<DeviceWithType> put, Collection<String> delete) {
+		List<byte[]> records = new ArrayList<byte[]>();
+		lock.writeLock().lock();
+		try {
+			for (DeviceWithType device : put) {
+				if (index.put(device.getDeviceOverview().getId(), device) != null) {
+					deadRecords++;
+				}
+				records.add(record(LIVE, DeviceRecordCodec.encode(device)));
+			}
+			for (String id : delete) {
+				if (index.remove(id) != null) {
+					deadRecords += 2;
+					records.add(record(DELETED, deletedPayload(id)));
+				}
+			}
+			if (records.isEmpty()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			return flush(records);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<DeviceWithType> readData() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<DeviceWithType>(index.values());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public DeviceOverview getDevice(String id) {
+		DeviceWithType device = index.get(id);
+		return device == null ? null : device.getDeviceOverview();
+	}
+
+	@Override
+	public DeviceWithType getRecord(String id) {
+		return index.get(id);
+	}
+
+	@Override
+	public CompletableFuture<Void> deletDevice(String id) {
+		lock.writeLock().lock();
+		try {
+			if (index.remove(id) == null) {
+				return CompletableFuture.completedFuture(null);
+			}
+			deadRecords += 2;
+			return flush(Collections.singletonList(record(DELETED, deletedPayload(id))));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the record of the given kind holding the given payload
+	 */
+	private static byte[] record(byte kind, byte[] payload) {
+		return ByteBuffer.allocate(5 + payload.length).putInt(1 + payload.length).put(kind).put(payload).array();
+	}
+
+	private static byte[] deletedPayload(String id) {
+		byte[] bytes = DeviceRecordCodec.bytes(id);
+		ByteBuffer payload = ByteBuffer.allocate(4 + bytes.length);
+		DeviceRecordCodec.putBytes(payload, bytes);
+		return payload.array();
+	}
+
+	/**
+	 * Store records already applied to the index: rewrite the file if dead
+	 * records outnumber the live ones, append them otherwise or if the rewrite
+	 * fails
+	 */
+	private CompletableFuture<Void> flush(List<byte[]> records) {
+		if (deadRecords >= MIN_COMPACTION && deadRecords > index.size() && compact()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return append(records);
+	}
+
+	/**
+	 * The channel appending to the file, opened again if a compaction left it
+	 * closed
+	 */
+	private FileChannel channel() throws IOException {
+		if (channel == null || !channel.isOpen()) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		return channel;
+	}
+
+	/**
+	 * Append records with a single write
+	 */
+	private CompletableFuture<Void> append(List<byte[]> records) {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		try {
+			int size = 0;
+			for (byte[] record : records) {
+				size += record.length;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			for (byte[] record : records) {
+				buffer.put(record);
+			}
+			buffer.flip();
+			FileChannel out = channel();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(false);
+			done.complete(null);
+		} catch (IOException e) {
+			logger.error("Unable to append to device database {}", file, e);
+			done.completeExceptionally(e);
+		}
+		return done;
+	}
+
+	/**
+	 * Rewrite the file with the live devices only. The compacted file is
+	 * written aside and renamed over the file, so the file and its channel
+	 * are left untouched if the rewrite fails.
+	 *
+	 * @return false if the file could not be rewritten
+	 */
+	private boolean compact() {
+		try {
+			write(file, index.values());
+		} catch (IOException e) {
+			logger.error("Unable to compact device database {}", file, e);
+			return false;
+		}
+		deadRecords = 0;
+		// the channel still appends to the replaced file
+		try {
+			channel.close();
+			channel();
+		} catch (IOException e) {
+			logger.error("Unable to open compacted device database {}, opening it on next write", file, e);
+		}
+		logger.info("Compacted {} to {} devices", file, index.size());
+		return true;
+	}
+
+	/**
+	 * Atomically replace the given file with one holding the given devices
+	 */
+	public static void write(File file, Collection<DeviceWithType> devices) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			out.write(header);
+			for (DeviceWithType device : devices) {
+				byte[] payload = DeviceRecordCodec.encode(device);
+				ByteBuffer record = ByteBuffer.allocate(5 + payload.length);
+				record.putInt(1 + payload.length).put(LIVE).put(payload).flip();
+				while (record.hasRemaining()) {
+					out.write(record);
+				}
+			}
+			out.force(true);
+		}
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Append-only log of device database mutations, one JSON record per line.
+ *
+ * The journal lives next to the snapshot file. On compaction it is rotated
+ * aside, so that new records keep being appended while the snapshot is
+ * written; the rotated file is dropped once the snapshot is on disk.
+ * Records are idempotent, so replaying a record already contained in the
+ * snapshot is harmless.
+ */
+public class DeviceJournal {
+
+	protected final Logger logger = LoggerFactory.getLogger(DeviceJournal.class);
+
+	private final ObjectMapper mapper;
+
+	private final File journalFile;
+
+	private final File rotatedFile;
+
+	private FileOutputStream out;
+
+	public DeviceJournal(File snapshotFile, ObjectMapper mapper) {
+		this.mapper = mapper.copy().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		this.journalFile = new File(snapshotFile.getPath() + ".journal");
+		this.rotatedFile = new File(snapshotFile.getPath() + ".journal.old");
+	}
+
+	/**
+	 * Apply the rotated journal, if a compaction was interrupted, and then the
+	 * current journal on top of the given snapshot index.
+	 *
+	 * @return number of replayed records
+	 */
+	public synchronized int replay(Map<String, DeviceWithType> index) {
+		return replay(rotatedFile, index) + replay(journalFile, index);
+	}
+
+	private int replay(File file, Map<String, DeviceWithType> index) {
+		int count = 0;
+		if (!file.exists()) {
+			return count;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				JournalRecord record;
+				try {
+					record = mapper.readValue(line, JournalRecord.class);
+				} catch (IOException e) {
+					// a torn last line is expected after a crash mid-append
+					logger.warn("Skipping unreadable journal record in {}: {}", file, e.getMessage());
+					continue;
+				}
+				if (JournalRecord.SAVE.equals(record.op) && record.device != null) {
+					index.put(record.id, record.device);
+				} else if (JournalRecord.DELETE.equals(record.op)) {
+					index.remove(record.id);
+				}
+				count++;
+			}
+		} catch (IOException e) {
+			logger.error("Unable to replay journal {}", file, e);
+		}
+		return count;
+	}
+
+	/**
+	 * Append records to the journal, with a single write
+	 */
+	public synchronized void append(List<JournalRecord> records) throws IOException {
+		if (out == null) {
+			out = new FileOutputStream(journalFile, true);
+		}
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		for (JournalRecord record : records) {
+			mapper.writeValue(lines, record);
+			lines.write('\n');
+		}
+		lines.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Force appended records to disk
+	 */
+	public synchronized void sync() throws IOException {
+		if (out != null) {
+			out.getFD().sync();
+		}
+	}
+
+	/**
+	 * @return current size of the journal in bytes
+	 */
+	public long size() {
+		return journalFile.length();
+	}
+
+	/**
+	 * Move the current journal aside so that new records start a fresh file.
+	 * Must be called while no mutation is in flight, so that every record in
+	 * the rotated journal is also reflected in the snapshot being written.
+	 */
+	public synchronized void rotate() throws IOException {
+		close();
+		if (journalFile.exists() && !journalFile.renameTo(rotatedFile)) {
+			throw new IOException("Unable to rotate journal " + journalFile);
+		}
+	}
+
+	/**
+	 * Drop the rotated journal once the snapshot covering it is written.
+	 */
+	public synchronized void discardRotated() {
+		if (rotatedFile.exists() && !rotatedFile.delete()) {
+			logger.warn("Unable to delete rotated journal {}", rotatedFile);
+		}
+	}
+
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.error("Unable to close journal {}", journalFile, e);
+			}
+			out = null;
+		}
+	}
+
+	public File getFile() {
+		return journalFile;
+	}
+}
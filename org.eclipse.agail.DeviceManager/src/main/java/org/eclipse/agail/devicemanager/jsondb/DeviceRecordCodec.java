@@ -0,0 +1,132 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.agail.object.DeviceComponent;
+import org.eclipse.agail.object.DeviceDefinition;
+import org.eclipse.agail.object.DeviceOverview;
+
+/**
+ * Compact binary encoding of a {@link DeviceWithType}.
+ *
+ * Strings are written as an int byte length followed by their UTF-8 bytes; a
+ * length of -1 encodes null. Fields are written in the order: device type,
+ * id, protocol, name, status.
+ *
+ * A device with a definition is followed by the definition fields: device id,
+ * address, name, description, protocol, path, then an int stream count (-1 for
+ * null) and the id and unit of each stream. Records written before
+ * definitions were stored simply end after the status.
+ */
+public class DeviceRecordCodec {
+
+	private DeviceRecordCodec() {
+	}
+
+	public static byte[] encode(DeviceWithType device) {
+		DeviceOverview overview = device.getDeviceOverview();
+		List<byte[]> fields = new ArrayList<byte[]>();
+		fields.add(bytes(device.getDeviceType()));
+		fields.add(bytes(overview.getId()));
+		fields.add(bytes(overview.getProtocol()));
+		fields.add(bytes(overview.getName()));
+		fields.add(bytes(overview.getStatus()));
+		DeviceDefinition definition = device.getDeviceDefinition();
+		List<DeviceComponent> streams = null;
+		if (definition != null) {
+			fields.add(bytes(definition.getDeviceId()));
+			fields.add(bytes(definition.getAddress()));
+			fields.add(bytes(definition.getName()));
+			fields.add(bytes(definition.getDescription()));
+			fields.add(bytes(definition.getProtocol()));
+			fields.add(bytes(definition.getPath()));
+			streams = definition.getStreams();
+		}
+		int size = 0;
+		for (byte[] field : fields) {
+			size += 4 + (field == null ? 0 : field.length);
+		}
+		List<byte[]> components = new ArrayList<byte[]>();
+		if (definition != null) {
+			size += 4;
+			if (streams != null) {
+				for (DeviceComponent component : streams) {
+					byte[] id = bytes(component.getId());
+					byte[] unit = bytes(component.getUnit());
+					components.add(id);
+					components.add(unit);
+					size += 8 + (id == null ? 0 : id.length) + (unit == null ? 0 : unit.length);
+				}
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (byte[] field : fields) {
+			putBytes(buffer, field);
+		}
+		if (definition != null) {
+			buffer.putInt(streams == null ? -1 : streams.size());
+			for (byte[] component : components) {
+				putBytes(buffer, component);
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Decode a device from the current position of the buffer, advancing it
+	 * past the record. The buffer limit must be the end of the record.
+	 */
+	public static DeviceWithType decode(ByteBuffer buffer) {
+		String type = getString(buffer);
+		String id = getString(buffer);
+		String protocol = getString(buffer);
+		String name = getString(buffer);
+		String status = getString(buffer);
+		DeviceOverview overview = new DeviceOverview(id, protocol, name, status);
+		if (!buffer.hasRemaining()) {
+			return new DeviceWithType(type, overview);
+		}
+		String deviceId = getString(buffer);
+		String address = getString(buffer);
+		String deviceName = getString(buffer);
+		String description = getString(buffer);
+		String deviceProtocol = getString(buffer);
+		String path = getString(buffer);
+		int count = buffer.getInt();
+		List<DeviceComponent> streams = null;
+		if (count >= 0) {
+			streams = new ArrayList<DeviceComponent>(count);
+			for (int i = 0; i < count; i++) {
+				streams.add(new DeviceComponent(getString(buffer), getString(buffer)));
+			}
+		}
+		return new DeviceWithType(type, overview,
+				new DeviceDefinition(deviceId, address, deviceName, description, deviceProtocol, path, streams));
+	}
+
+	static byte[] bytes(String s) {
+		return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,82 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.agail.object.DeviceOverview;
+
+/**
+ * Persistent registry of the devices known to the device manager.
+ *
+ * Implementations keep the stored devices indexed by device id; mutations
+ * return a future completed once the change is durable.
+ */
+public interface DeviceStore {
+
+	/**
+	 * Store a device, unless a device with the same id is already stored
+	 */
+	CompletableFuture<Void> saveDevice(DeviceOverview dev, String type);
+
+	/**
+	 * Store a device, replacing the stored device with the same id if any
+	 *
+	 * @return a future completed once the device is durably stored
+	 */
+	CompletableFuture<Void> putDevice(DeviceWithType device);
+
+	/**
+	 * Store several devices with a single write, skipping the ones whose id is
+	 * already stored
+	 *
+	 * @return number of newly stored devices, once they are durable
+	 */
+	CompletableFuture<Integer> saveDevices(Collection<DeviceWithType> devices);
+
+	/**
+	 * Store and remove several devices with a single write. Stored devices
+	 * replace the ones with the same id; removals are applied after them.
+	 *
+	 * @return a future completed once the changes are durable
+	 */
+	CompletableFuture<Void> writeBatch(Collection<DeviceWithType> put, Collection<String> delete);
+
+	/**
+	 * @return all stored devices
+	 */
+	List<DeviceWithType> readData();
+
+	/**
+	 * @return the stored device with the given id, or null if unknown
+	 */
+	DeviceOverview getDevice(String id);
+
+	/**
+	 * @return the stored record, with its type and definition, of the device
+	 *         with the given id, or null if unknown
+	 */
+	DeviceWithType getRecord(String id);
+
+	/**
+	 * Stores without a protocol index filter all the stored devices
+	 *
+	 * @return the stored devices of the given protocol
+	 */
+	default List<DeviceWithType> findByProtocol(String protocol) {
+		List<DeviceWithType> result = new ArrayList<DeviceWithType>();
+		for (DeviceWithType device : readData()) {
+			if (protocol.equals(device.getDeviceOverview().getProtocol())) {
+				result.add(device);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the device with the given id, if stored
+	 */
+	CompletableFuture<Void> deletDevice(String id);
+
+}
@@ -0,0 +1,75 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.agail.devicemanager.Env;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the {@link DeviceStore} backend from the DBBACKEND environment
+ * variable: "json" (default), "binary" or "mvstore".
+ *
+ * The binary and mvstore backends are seeded from the JSON database the first
+ * time they are used. A backend that cannot be opened fails the startup
+ * rather than falling back to another database, whose devices would differ.
+ */
+public class DeviceStores {
+
+	protected static final Logger logger = LoggerFactory.getLogger(DeviceStores.class);
+
+	public static final String JSON = "json";
+
+	public static final String BINARY = "binary";
+
+	public static final String MVSTORE = "mvstore";
+
+	private static final String DEFAULT_JSON_FILE = "/devicesdb.json";
+
+	private static final String DEFAULT_BINARY_FILE = "/devicesdb.bin";
+
+	private static final String DEFAULT_MVSTORE_FILE = "/devicesdb.mv.db";
+
+	/**
+	 * @throws IllegalStateException
+	 *             if the backend is unknown or cannot be opened
+	 */
+	public static DeviceStore open() {
+		String backend = Env.get("DBBACKEND", JSON);
+		logger.info("Using {} device store", backend);
+		if (BINARY.equals(backend)) {
+			File binFile = new File(Env.get("DBBINFILE", DEFAULT_BINARY_FILE));
+			File jsonFile = new File(Env.get("DBFILE", DEFAULT_JSON_FILE));
+			try {
+				if (!binFile.exists() && jsonFile.length() > 0) {
+					JsonToBinaryMigrator.migrate(jsonFile, binFile);
+				}
+				return new BinaryDB(binFile);
+			} catch (IOException e) {
+				logger.error("Unable to open binary device store {}", binFile, e);
+				throw new IllegalStateException("Unable to open binary device store " + binFile, e);
+			}
+		} else if (MVSTORE.equals(backend)) {
+			File mvFile = new File(Env.get("DBMVFILE", DEFAULT_MVSTORE_FILE));
+			File jsonFile = new File(Env.get("DBFILE", DEFAULT_JSON_FILE));
+			try {
+				boolean migrate = !mvFile.exists() && jsonFile.length() > 0;
+				MVStoreDB db = new MVStoreDB(mvFile);
+				if (migrate) {
+					int count = db.saveDevices(new JsonDB(jsonFile.getPath()).readData()).get();
+					logger.info("Migrated {} devices from {} to {}", count, jsonFile, mvFile);
+				}
+				return db;
+			} catch (Exception e) {
+				logger.error("Unable to open mvstore device store {}", mvFile, e);
+				throw new IllegalStateException("Unable to open mvstore device store " + mvFile, e);
+			}
+		} else if (!JSON.equals(backend)) {
+			logger.error("Unknown device store backend {}", backend);
+			throw new IllegalStateException("Unknown device store backend " + backend + ", expected " + JSON + ", "
+					+ BINARY + " or " + MVSTORE);
+		}
+		return new JsonDB();
+	}
+}
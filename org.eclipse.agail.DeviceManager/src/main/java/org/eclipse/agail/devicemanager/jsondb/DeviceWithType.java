@@ -1,11 +1,17 @@
 package org.eclipse.agail.devicemanager.jsondb;
 
+import org.eclipse.agail.object.DeviceDefinition;
 import org.eclipse.agail.object.DeviceOverview;
 
 public class DeviceWithType {
 
 	String deviceType;
 	DeviceOverview deviceOverview;
+	/**
+	 * Definition of the device as last built by its device factory, null until
+	 * the device has been instantiated once
+	 */
+	DeviceDefinition deviceDefinition;
 	
 	public DeviceWithType() {
 		// TODO Auto-generated constructor stub
@@ -16,6 +22,12 @@ public class DeviceWithType {
 		this.deviceOverview = deviceOverview;
 	}
 
+	public DeviceWithType(String deviceType, DeviceOverview deviceOverview, DeviceDefinition deviceDefinition) {
+		this.deviceType = deviceType;
+		this.deviceOverview = deviceOverview;
+		this.deviceDefinition = deviceDefinition;
+	}
+
 	public String getDeviceType() {
 		return deviceType;
 	}
@@ -31,4 +43,12 @@ public class DeviceWithType {
 	public void setDeviceOverview(DeviceOverview deviceOverview) {
 		this.deviceOverview = deviceOverview;
 	}
+
+	public DeviceDefinition getDeviceDefinition() {
+		return deviceDefinition;
+	}
+
+	public void setDeviceDefinition(DeviceDefinition deviceDefinition) {
+		this.deviceDefinition = deviceDefinition;
+	}
 }
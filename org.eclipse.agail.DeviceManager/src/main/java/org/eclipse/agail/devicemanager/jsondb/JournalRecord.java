@@ -0,0 +1,55 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+/**
+ * A single mutation of the device database, as appended to the journal.
+ */
+public class JournalRecord {
+
+	public static final String SAVE = "save";
+	public static final String DELETE = "delete";
+
+	String op;
+	String id;
+	DeviceWithType device;
+
+	public JournalRecord() {
+	}
+
+	public JournalRecord(String op, String id, DeviceWithType device) {
+		this.op = op;
+		this.id = id;
+		this.device = device;
+	}
+
+	public static JournalRecord save(DeviceWithType device) {
+		return new JournalRecord(SAVE, device.getDeviceOverview().getId(), device);
+	}
+
+	public static JournalRecord delete(String id) {
+		return new JournalRecord(DELETE, id, null);
+	}
+
+	public String getOp() {
+		return op;
+	}
+
+	public void setOp(String op) {
+		this.op = op;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public DeviceWithType getDevice() {
+		return device;
+	}
+
+	public void setDevice(DeviceWithType device) {
+		this.device = device;
+	}
+}
@@ -1,209 +1,550 @@
 package org.eclipse.agail.devicemanager.jsondb;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.agail.devicemanager.Env;
 import org.eclipse.agail.object.DeviceOverview;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonParser.Feature;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-
-public class JsonDB {
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Device database backed by a JSON file.
+ *
+ * The file is read once into an in-memory index keyed by device id; lookups
+ * are answered from the index and the file is only rewritten on mutation.
+ *
+ * When the DBJOURNAL environment variable is set to true, mutations are instead
+ * appended to a {@link DeviceJournal} next to the file, and a background
+ * compactor folds the journal into a new snapshot once it grows past
+ * DBJOURNAL_MAX bytes.
+ *
+ * Writes are group committed: mutations arriving within DBCOMMIT_WINDOW
+ * milliseconds are made durable by a single snapshot write (or a single
+ * journal sync), done by a background writer thread. Snapshots are written
+ * to a temporary file, synced and renamed over the database file, so a crash
+ * never leaves a truncated file behind. Mutations return a future that
+ * completes once the change is on disk.
+ *
+ * With DBLOOKUP=stream, for a reader that only looks a few devices up, the
+ * file answers the lookups until the index is loaded by {@link #readData()}
+ * or a mutation: {@link #getDevice(String)} walks the file token by token,
+ * binds only the matching entry and stops reading once it is found. The
+ * device manager reads every device at startup, so it always uses the index.
+ *
+ * The store is safe for concurrent callers. Lookups read the index without
+ * locking, mutations are serialized by a write lock held while the index is
+ * changed and the change is recorded, and {@link #readData()} shares a read
+ * lock so that it returns a consistent view of all devices.
+ */
+public class JsonDB implements DeviceStore {
 
 	protected final Logger logger = LoggerFactory.getLogger(JsonDB.class);
 
-	private String dbFileName = "/devicesdb.json";
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	static {
+		mapper.configure(Feature.AUTO_CLOSE_SOURCE, true);
+		mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+	}
+
+	private static final TypeReference<List<DeviceWithType>> DEVICE_LIST = new TypeReference<List<DeviceWithType>>() {
+	};
+
+	private static final ObjectReader listReader = mapper.readerFor(DEVICE_LIST);
+
+	private static final ObjectWriter listWriter = mapper.writerFor(DEVICE_LIST);
+
+	private static final ObjectReader deviceReader = mapper.readerFor(DeviceWithType.class);
+
+	private static final String DEFAULT_DB_FILE_NAME = "/devicesdb.json";
+
+	private String dbFileName;
 	private File dbFile;
 
+	/**
+	 * Registered devices indexed by device id
+	 */
+	private final ConcurrentMap<String, DeviceWithType> index = new ConcurrentHashMap<String, DeviceWithType>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private volatile boolean loaded = false;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Answer lookups by streaming the file until the index is loaded
+	 */
+	private boolean streamLookup = false;
+
+	/**
+	 * Mutation journal, null unless journal mode is enabled
+	 */
+	private DeviceJournal journal;
+
+	/**
+	 * Journal size in bytes that triggers a compaction
+	 */
+	private long journalMaxSize = 256 * 1024;
+
+	private final AtomicBoolean compactionPending = new AtomicBoolean(false);
+
+	/**
+	 * Group commit window in milliseconds
+	 */
+	private long commitWindow = 50;
+
+	/**
+	 * Single background thread doing every file write, so snapshot writes,
+	 * journal syncs and compactions never overlap
+	 */
+	private ScheduledExecutorService writer;
+
+	/**
+	 * Mutations waiting for the next group commit
+	 */
+	private List<CompletableFuture<Void>> pendingCommits = new ArrayList<CompletableFuture<Void>>();
+
+	private final Object fileLock = new Object();
+
+	public JsonDB() {
+	}
+
+	/**
+	 * @param dbFileName
+	 *            database file, overriding the DBFILE environment variable
+	 */
+	public JsonDB(String dbFileName) {
+		this.dbFileName = dbFileName;
+	}
+
 	private void setFile() {
+		synchronized (index) {
+			if (dbFile == null) {
+				initFile();
+			}
+		}
+	}
+
+	private void initFile() {
 		logger.debug("System.getenv(\"DBFILE\") {}", System.getenv("DBFILE"));
-		if(System.getenv("DBFILE") != null) {
-			dbFileName = System.getenv("DBFILE");
+		if (dbFileName == null) {
+			dbFileName = System.getenv("DBFILE") != null ? System.getenv("DBFILE") : DEFAULT_DB_FILE_NAME;
 		}
 		logger.debug("DBdevice File found {}", dbFileName);
-		if (dbFile == null) {
-			dbFile = new File(dbFileName);
-			if (dbFile.exists()) {
-				logger.info("DB File {} found.", dbFileName);
+		dbFile = new File(dbFileName);
+		if (dbFile.exists()) {
+			logger.info("DB File {} found.", dbFileName);
+		}
+		streamLookup = "stream".equals(System.getenv("DBLOOKUP"));
+		commitWindow = Env.getLong("DBCOMMIT_WINDOW", commitWindow, 0);
+		if (Boolean.parseBoolean(System.getenv("DBJOURNAL"))) {
+			journalMaxSize = Env.getLong("DBJOURNAL_MAX", journalMaxSize, 0);
+			journal = new DeviceJournal(dbFile, mapper);
+			logger.info("DB journal {} enabled, compacting at {} bytes", journal.getFile(), journalMaxSize);
+			if (streamLookup) {
+				// the snapshot alone does not reflect the journal
+				logger.warn("DBLOOKUP=stream is not supported in journal mode, using the index");
+				streamLookup = false;
 			}
 		}
+		writer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "jsondb-writer");
+			t.setDaemon(true);
+			return t;
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread(this::commit, "jsondb-shutdown"));
 	}
 
-	public void saveDevice(DeviceOverview dev, String type) {
-
-		setFile();
-
-		boolean found = false;
-		List<DeviceWithType> devices = readData();
-		for (int i = 0; i < devices.size(); i++) {
-			if (devices.get(i).deviceOverview.getId().equals(dev.getId())) {
-				found = true;
-			}
+	/**
+	 * Load the database file into the index, once.
+	 */
+	private void load() {
+		if (loaded) {
+			return;
 		}
-		if (!found) {
-			DeviceWithType d = new DeviceWithType(type, dev);
-			devices.add(d);
+		synchronized (index) {
+			if (loaded) {
+				return;
+			}
+			setFile();
+			for (DeviceWithType d : readFile()) {
+				index.put(d.deviceOverview.getId(), d);
+			}
+			if (journal != null) {
+				logger.info("Replayed {} records from journal", journal.replay(index));
+				scheduleCompaction();
+			}
+			loaded = true;
+			logger.info("Devices {} found in jsonDB.", index.size());
 		}
-
-		updateFile(devices);
 	}
 
-	public List<DeviceWithType> readData() {
-
-		setFile();
-
+	private List<DeviceWithType> readFile() {
 		List<DeviceWithType> devices = new ArrayList<DeviceWithType>();
-		BufferedReader bufferedReader;
+		if (dbFile.length() == 0) {
+			return devices;
+		}
+		try (BufferedReader bufferedReader = new BufferedReader(new FileReader(dbFile))) {
+			devices = listReader.readValue(bufferedReader);
+		} catch (IOException e) {
+			logger.error("Unable to read device database {}", dbFileName, e);
+		}
+		return devices;
+	}
+
+	/**
+	 * Store a device, unless a device with the same id is already stored
+	 *
+	 * @return a future completed once the device is durably stored
+	 */
+	@Override
+	public CompletableFuture<Void> saveDevice(DeviceOverview dev, String type) {
+		load();
+		DeviceWithType device = new DeviceWithType(type, dev);
+		lock.writeLock().lock();
 		try {
-			if (dbFile.length() == 0) {
-				return devices;
+			if (index.putIfAbsent(dev.getId(), device) != null) {
+				return CompletableFuture.completedFuture(null);
 			}
+			return journal != null ? appendJournal(Collections.singletonList(JournalRecord.save(device))) : scheduleCommit();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-			FileReader f = new FileReader(dbFile);
-			bufferedReader = new BufferedReader(f);
+	@Override
+	public CompletableFuture<Void> putDevice(DeviceWithType device) {
+		load();
+		lock.writeLock().lock();
+		try {
+			index.put(device.getDeviceOverview().getId(), device);
+			return journal != null ? appendJournal(Collections.singletonList(JournalRecord.save(device))) : scheduleCommit();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(Feature.AUTO_CLOSE_SOURCE, true);
-			devices = mapper.readValue(bufferedReader, new TypeReference<List<DeviceWithType>>() {
-			});
+	@Override
+	public CompletableFuture<Integer> saveDevices(Collection<DeviceWithType> devices) {
+		load();
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		lock.writeLock().lock();
+		try {
+			for (DeviceWithType device : devices) {
+				if (index.putIfAbsent(device.getDeviceOverview().getId(), device) == null) {
+					records.add(JournalRecord.save(device));
+				}
+			}
+			if (records.isEmpty()) {
+				return CompletableFuture.completedFuture(0);
+			}
+			CompletableFuture<Void> committed = journal != null ? appendJournal(records) : scheduleCommit();
+			return committed.thenApply(v -> records.size());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-			for (int i = 0; i < devices.size(); i++) {
-				System.out.println(devices.get(i).deviceOverview.id);
+	@Override
+	public CompletableFuture<Void> writeBatch(Collection<DeviceWithType> put, Collection<String> delete) {
+		load();
+		List<JournalRecord> records = new ArrayList<JournalRecord>();
+		lock.writeLock().lock();
+		try {
+			for (DeviceWithType device : put) {
+				index.put(device.getDeviceOverview().getId(), device);
+				records.add(JournalRecord.save(device));
 			}
+			for (String id : delete) {
+				if (index.remove(id) != null) {
+					records.add(JournalRecord.delete(id));
+				}
+			}
+			if (records.isEmpty()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			return journal != null ? appendJournal(records) : scheduleCommit();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-			logger.info("Devices {} fround in jsonDB.", devices.size());
+	@Override
+	public List<DeviceWithType> readData() {
+		load();
+		return snapshot();
+	}
 
-		} catch (IOException e) {
-			System.out.println(e.toString());
-			e.printStackTrace();
+	private List<DeviceWithType> snapshot() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<DeviceWithType>(index.values());
+		} finally {
+			lock.readLock().unlock();
 		}
-		return devices;
 	}
 
+	@Override
 	public DeviceOverview getDevice(String id) {
+		DeviceWithType device = lookup(id);
+		if (device == null) {
+			misses.incrementAndGet();
+			logger.debug("Device {} not found in jsonDB.", id);
+			return null;
+		}
+		hits.incrementAndGet();
+		logger.info("Devices (id= {}, name= {}) fround in jsonDB.", device.deviceOverview.id, device.deviceOverview.name);
+		return device.deviceOverview;
+	}
 
-		setFile();
+	@Override
+	public DeviceWithType getRecord(String id) {
+		return lookup(id);
+	}
 
-		DeviceOverview device = null;
-		BufferedReader bufferedReader;
-		try {
+	private DeviceWithType lookup(String id) {
+		setFile();
+		if (streamLookup && !loaded) {
+			return findInFile(id);
+		}
+		load();
+		return index.get(id);
+	}
 
-			if (dbFile.length() == 0) {
-				return device;
+	/**
+	 * Walk the database file looking for the device with the given id. Only
+	 * the matching entry is bound, and reading stops once it is found.
+	 */
+	private DeviceWithType findInFile(String id) {
+		if (dbFile.length() == 0) {
+			return null;
+		}
+		try (JsonParser parser = mapper.getFactory().createParser(dbFile)) {
+			if (parser.nextToken() != JsonToken.START_ARRAY) {
+				return null;
 			}
-
-			bufferedReader = new BufferedReader(new FileReader(dbFile));
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(Feature.AUTO_CLOSE_SOURCE, true);
-			List<DeviceWithType> jsonDevices = mapper.readValue(bufferedReader,
-					new TypeReference<List<DeviceWithType>>() {
-					});
-
-			for (int i = 0; i < jsonDevices.size(); i++) {
-				if (jsonDevices.get(i).deviceOverview.id.equals(id)) {
-					device = jsonDevices.get(i).deviceOverview;
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				TokenBuffer entry = new TokenBuffer(parser);
+				entry.copyCurrentEvent(parser);
+				boolean match = false;
+				boolean mismatch = false;
+				boolean inOverview = false;
+				int depth = 1;
+				while (depth > 0) {
+					JsonToken token = parser.nextToken();
+					if (token == null) {
+						return null;
+					}
+					if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+						if (depth == 1) {
+							inOverview = "deviceOverview".equals(parser.getCurrentName());
+						}
+						depth++;
+					} else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+						depth--;
+					} else if (inOverview && depth == 2 && token == JsonToken.VALUE_STRING
+							&& "id".equals(parser.getCurrentName())) {
+						match = id.equals(parser.getText());
+						mismatch = !match;
+					}
+					if (mismatch) {
+						// skip the rest of this entry without buffering it
+						continue;
+					}
+					entry.copyCurrentEvent(parser);
+				}
+				if (match) {
+					return deviceReader.readValue(entry.asParser());
 				}
 			}
-
-		} catch (FileNotFoundException e) {
-			System.out.println(e.toString());
-			e.printStackTrace();
-		} catch (JsonParseException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (JsonMappingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.error("Unable to read device database {}", dbFileName, e);
 		}
-		logger.info("Devices (id= {}, name= {}) fround in jsonDB.", device.id, device.name);
-		return device;
+		return null;
 	}
 
-	public void deletDevice(String id) {
-
-		setFile();
-
+	/**
+	 * Remove a device
+	 *
+	 * @return a future completed once the removal is durable
+	 */
+	@Override
+	public CompletableFuture<Void> deletDevice(String id) {
+		load();
 		logger.debug("Deleting device {} from database", id);
-
-		BufferedReader bufferedReader;
+		lock.writeLock().lock();
 		try {
-
-			if (dbFile.length() == 0) {
+			if (index.remove(id) == null) {
 				logger.debug("Device {} not found in database", id);
-				return;
+				return CompletableFuture.completedFuture(null);
 			}
+			logger.debug("Device {} deleted from database", id);
+			return journal != null ? appendJournal(Collections.singletonList(JournalRecord.delete(id))) : scheduleCommit();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-			bufferedReader = new BufferedReader(new FileReader(dbFile));
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.configure(Feature.AUTO_CLOSE_SOURCE, true);
-			List<DeviceWithType> jsonDevices = mapper.readValue(bufferedReader,
-					new TypeReference<List<DeviceWithType>>() {
-					});
-
-			DeviceWithType d = null;
-			logger.debug("Devices {} found in database", jsonDevices.size());
-			for (int i = 0; i < jsonDevices.size(); i++) {
-				if (jsonDevices.get(i).deviceOverview.id.equals(id)) {
-					d = jsonDevices.get(i);
-					logger.debug("Device {} found in database", id);
-				}
-			}
+	/**
+	 * @return number of {@link #getDevice(String)} calls answered from the index
+	 */
+	public long getHits() {
+		return hits.get();
+	}
 
-			if (d != null) {
-				jsonDevices.remove(d);
-				logger.debug("Device {} deleted from database", id);
-				updateFile(jsonDevices);
-			}
+	/**
+	 * @return number of {@link #getDevice(String)} calls for unknown ids
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
 
-		} catch (FileNotFoundException e) {
-			System.out.println(e.toString());
-			e.printStackTrace();
-		} catch (JsonParseException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (JsonMappingException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	private CompletableFuture<Void> appendJournal(List<JournalRecord> records) {
+		try {
+			journal.append(records);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.error("Unable to append to journal {}, compacting instead", journal.getFile(), e);
+			CompletableFuture<Void> compacted = new CompletableFuture<Void>();
+			writer.submit(() -> {
+				compact();
+				compacted.complete(null);
+			});
+			return compacted;
 		}
+		CompletableFuture<Void> committed = scheduleCommit();
+		scheduleCompaction();
+		return committed;
 	}
 
-	private void updateFile(List<DeviceWithType> devices) {
-		// if(devices.isEmpty()) {
-		// return;
-		// }
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(Feature.AUTO_CLOSE_SOURCE, true);
-
-		try (BufferedWriter out = new BufferedWriter(new FileWriter(dbFile))) {
+	/**
+	 * Fold the journal into a new snapshot in the background once it exceeds
+	 * the configured size.
+	 */
+	private void scheduleCompaction() {
+		if (journal.size() < journalMaxSize || !compactionPending.compareAndSet(false, true)) {
+			return;
+		}
+		writer.submit(this::compact);
+	}
 
-			// out.write(jsonString);
+	private void compact() {
+		try {
+			List<DeviceWithType> snapshot;
+			lock.writeLock().lock();
+			try {
+				snapshot = new ArrayList<DeviceWithType>(index.values());
+				journal.rotate();
+			} finally {
+				lock.writeLock().unlock();
+			}
+			writeFile(snapshot);
+			journal.discardRotated();
+			logger.info("Compacted journal into snapshot of {} devices", snapshot.size());
+		} catch (IOException e) {
+			logger.error("Unable to compact journal {}", journal.getFile(), e);
+		} finally {
+			compactionPending.set(false);
+		}
+	}
 
-			mapper.writeValue(out, devices);
-			String jsonString = mapper.writeValueAsString(devices);
+	/**
+	 * Join the next group commit, scheduling one if none is pending
+	 */
+	private CompletableFuture<Void> scheduleCommit() {
+		CompletableFuture<Void> committed = new CompletableFuture<Void>();
+		synchronized (this) {
+			pendingCommits.add(committed);
+			if (pendingCommits.size() == 1) {
+				writer.schedule(this::commit, commitWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+		return committed;
+	}
 
-			logger.info("Device object {} saved in jsonDB.", jsonString);
+	/**
+	 * Make every pending mutation durable with one write
+	 */
+	private void commit() {
+		List<CompletableFuture<Void>> committing;
+		synchronized (this) {
+			if (pendingCommits.isEmpty()) {
+				return;
+			}
+			committing = pendingCommits;
+			pendingCommits = new ArrayList<CompletableFuture<Void>>();
+		}
+		try {
+			if (journal != null) {
+				journal.sync();
+			} else {
+				writeFile(snapshot());
+			}
+			for (CompletableFuture<Void> f : committing) {
+				f.complete(null);
+			}
 		} catch (IOException e) {
-			System.out.println(e.toString());
-			e.printStackTrace();
+			logger.error("Unable to write device database {}", dbFileName, e);
+			for (CompletableFuture<Void> f : committing) {
+				f.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Atomically replace the database file: write a temporary file, sync it
+	 * and rename it over the previous one.
+	 */
+	private void writeFile(List<DeviceWithType> devices) throws IOException {
+		synchronized (fileLock) {
+			File tmpFile = new File(dbFile.getPath() + ".tmp");
+			try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+				BufferedOutputStream out = new BufferedOutputStream(fos);
+				listWriter.writeValue(out, devices);
+				out.flush();
+				fos.getFD().sync();
+			}
+			try {
+				Files.move(tmpFile.toPath(), dbFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
 		}
+		logger.info("Devices {} saved in jsonDB.", devices.size());
 	}
 
 }
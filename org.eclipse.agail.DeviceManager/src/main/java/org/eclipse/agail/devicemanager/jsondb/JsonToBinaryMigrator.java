@@ -0,0 +1,39 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One-shot conversion of a JSON device database into the {@link BinaryDB}
+ * format.
+ *
+ * Usage: JsonToBinaryMigrator &lt;devicesdb.json&gt; &lt;devicesdb.bin&gt;
+ */
+public class JsonToBinaryMigrator {
+
+	protected static final Logger logger = LoggerFactory.getLogger(JsonToBinaryMigrator.class);
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: JsonToBinaryMigrator <devicesdb.json> <devicesdb.bin>");
+			System.exit(1);
+		}
+		migrate(new File(args[0]), new File(args[1]));
+	}
+
+	/**
+	 * Write every device of the JSON database to a new binary database
+	 *
+	 * @return number of migrated devices
+	 */
+	public static int migrate(File jsonFile, File binFile) throws IOException {
+		List<DeviceWithType> devices = new JsonDB(jsonFile.getPath()).readData();
+		BinaryDB.write(binFile, devices);
+		logger.info("Migrated {} devices from {} to {}", devices.size(), jsonFile, binFile);
+		return devices.size();
+	}
+}
@@ -0,0 +1,227 @@
+package org.eclipse.agail.devicemanager.jsondb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.agail.object.DeviceOverview;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Device database stored in an embedded H2 MVStore file.
+ *
+ * Devices are kept in a B-tree map from device id to the record encoded by
+ * {@link DeviceRecordCodec}. A second map indexes the ids by protocol, keyed
+ * by protocol, a NUL separator and the id, so that the devices of a protocol
+ * are a prefix scan. Auto commit is disabled: every mutation, including a
+ * whole {@link #saveDevices(Collection)} batch, updates both maps and is
+ * then committed and synced as one version of the store, so a crash never
+ * leaves a partial batch or an index out of step with the devices.
+ */
+public class MVStoreDB implements DeviceStore {
+
+	protected final Logger logger = LoggerFactory.getLogger(MVStoreDB.class);
+
+	private static final char SEPARATOR = '\0';
+
+	private final File file;
+
+	private final MVStore store;
+
+	/**
+	 * Encoded devices by device id
+	 */
+	private final MVMap<String, byte[]> devices;
+
+	/**
+	 * Device ids by protocol + SEPARATOR + device id
+	 */
+	private final MVMap<String, String> protocols;
+
+	/**
+	 * Serializes mutations, so that a commit covers only complete ones
+	 */
+	private final Lock lock = new ReentrantLock();
+
+	public MVStoreDB(File file) {
+		this.file = file;
+		store = new MVStore.Builder().fileName(file.getPath()).autoCommitDisabled().open();
+		devices = store.openMap("devices");
+		protocols = store.openMap("protocols");
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> close(), "mvstore-close"));
+		logger.info("Devices {} found in {}.", devices.size(), file);
+	}
+
+	@Override
+	public CompletableFuture<Void> saveDevice(DeviceOverview dev, String type) {
+		lock.lock();
+		try {
+			if (devices.containsKey(dev.getId())) {
+				return CompletableFuture.completedFuture(null);
+			}
+			put(new DeviceWithType(type, dev));
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> putDevice(DeviceWithType device) {
+		lock.lock();
+		try {
+			put(device);
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Integer> saveDevices(Collection<DeviceWithType> batch) {
+		lock.lock();
+		try {
+			int saved = 0;
+			for (DeviceWithType device : batch) {
+				if (!devices.containsKey(device.getDeviceOverview().getId())) {
+					put(device);
+					saved++;
+				}
+			}
+			if (saved == 0) {
+				return CompletableFuture.completedFuture(0);
+			}
+			int count = saved;
+			return commit().thenApply(v -> count);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> writeBatch(Collection<DeviceWithType> put, Collection<String> delete) {
+		lock.lock();
+		try {
+			for (DeviceWithType device : put) {
+				put(device);
+			}
+			for (String id : delete) {
+				byte[] record = devices.remove(id);
+				if (record != null) {
+					protocols.remove(protocolKey(DeviceRecordCodec.decode(ByteBuffer.wrap(record)).getDeviceOverview()));
+				}
+			}
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<DeviceWithType> readData() {
+		List<DeviceWithType> result = new ArrayList<DeviceWithType>(devices.size());
+		for (byte[] record : devices.values()) {
+			result.add(DeviceRecordCodec.decode(ByteBuffer.wrap(record)));
+		}
+		return result;
+	}
+
+	@Override
+	public DeviceOverview getDevice(String id) {
+		DeviceWithType device = getRecord(id);
+		return device == null ? null : device.getDeviceOverview();
+	}
+
+	@Override
+	public DeviceWithType getRecord(String id) {
+		byte[] record = devices.get(id);
+		return record == null ? null : DeviceRecordCodec.decode(ByteBuffer.wrap(record));
+	}
+
+	@Override
+	public List<DeviceWithType> findByProtocol(String protocol) {
+		String prefix = protocol + SEPARATOR;
+		List<DeviceWithType> result = new ArrayList<DeviceWithType>();
+		Iterator<String> keys = protocols.keyIterator(prefix);
+		while (keys.hasNext()) {
+			String key = keys.next();
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			byte[] record = devices.get(protocols.get(key));
+			if (record != null) {
+				result.add(DeviceRecordCodec.decode(ByteBuffer.wrap(record)));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<Void> deletDevice(String id) {
+		lock.lock();
+		try {
+			byte[] record = devices.remove(id);
+			if (record == null) {
+				return CompletableFuture.completedFuture(null);
+			}
+			protocols.remove(protocolKey(DeviceRecordCodec.decode(ByteBuffer.wrap(record)).getDeviceOverview()));
+			return commit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close the store file; the store cannot be used afterwards
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (!store.isClosed()) {
+				store.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void put(DeviceWithType device) {
+		DeviceOverview overview = device.getDeviceOverview();
+		byte[] previous = devices.put(overview.getId(), DeviceRecordCodec.encode(device));
+		if (previous != null) {
+			protocols.remove(protocolKey(DeviceRecordCodec.decode(ByteBuffer.wrap(previous)).getDeviceOverview()));
+		}
+		protocols.put(protocolKey(overview), overview.getId());
+	}
+
+	private static String protocolKey(DeviceOverview overview) {
+		return overview.getProtocol() + SEPARATOR + overview.getId();
+	}
+
+	/**
+	 * Commit the pending changes as a new version of the store and sync it to
+	 * disk, or roll them back if that fails
+	 */
+	private CompletableFuture<Void> commit() {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		try {
+			store.commit();
+			store.sync();
+			done.complete(null);
+		} catch (RuntimeException e) {
+			logger.error("Unable to commit to device database {}", file, e);
+			store.rollback();
+			done.completeExceptionally(e);
+		}
+		return done;
+	}
+}
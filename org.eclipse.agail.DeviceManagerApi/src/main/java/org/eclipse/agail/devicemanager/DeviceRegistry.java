@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.devicemanager;
+
+import org.freedesktop.dbus.DBusInterface;
+import org.freedesktop.dbus.DBusSignal;
+import org.freedesktop.dbus.exceptions.DBusException;
+
+/**
+ * Registry level operations of the device manager, exported on the same bus
+ * name and path as {@link org.eclipse.agail.DeviceManager}.
+ *
+ * Devices are exchanged as JSON arrays of stored device entries, i.e.
+ * {"deviceType": ..., "deviceOverview": {"id", "protocol", "name", "status"},
+ * "deviceDefinition": {"deviceId", "address", "name", "description",
+ * "protocol", "path", "streams"}}, the definition being null for a device
+ * not instantiated yet.
+ */
+public interface DeviceRegistry extends DBusInterface {
+
+	/**
+	 * Validate and store a JSON array of devices with a single write, then
+	 * register the stored devices in the background. The deviceDefinition of
+	 * an entry is optional: its name, description and streams are applied to
+	 * the device once registered, and the resulting definition is stored.
+	 *
+	 * @param devices
+	 *            JSON array of devices
+	 * @return JSON report: {"imported": n, "skipped": n, "errors": [{"index",
+	 *         "id", "error"}]}
+	 */
+	public String Import(String devices);
+
+	/**
+	 * Export a page of the stored devices, ordered by id
+	 *
+	 * @param offset
+	 *            index of the first device to return
+	 * @param limit
+	 *            maximum number of devices to return
+	 * @return JSON array of devices with their deviceDefinition, empty past
+	 *         the last device
+	 */
+	public String Export(int offset, int limit);
+
+	/**
+	 * Registry changes still held by the device manager, for clients catching
+	 * up with the change feed
+	 *
+	 * @param since
+	 *            sequence number of the last change seen by the client, 0 for
+	 *            none
+	 * @return JSON: {"sequence": last sequence number, "complete": false if
+	 *         changes after since were already dropped and the client must
+	 *         reload the registry, "changes": [change, ...]}
+	 */
+	public String Changes(long since);
+
+	/**
+	 * Search the registered devices through in-memory indexes, without
+	 * calling any device
+	 *
+	 * @param query
+	 *            JSON object, every field optional: {"id", "protocol", "type",
+	 *            "status", "name": name prefix, case insensitive, "offset",
+	 *            "limit": page size, default 100}
+	 * @return JSON: {"total": number of matches, "offset", "limit", "devices":
+	 *         [definitions ordered by id]}
+	 */
+	public String Search(String query);
+
+	/**
+	 * Run an operation on many devices at once, in parallel. A failed item
+	 * does not abort the others; the registry changes of the batch are stored
+	 * with a single write at the end.
+	 *
+	 * @param operation
+	 *            register, delete, connect, disconnect or read
+	 * @param arguments
+	 *            JSON array: {"overview", "type"} objects for register, device
+	 *            ids otherwise
+	 * @return JSON report: {"operation", "succeeded", "failed", "results":
+	 *         [{"index", "id", "ok", "result" or "error"}]}, result being the
+	 *         device definition for register and the records for read
+	 */
+	public String RunBatch(String operation, String arguments);
+
+	/**
+	 * @return JSON metrics of the device connect scheduler: queue depth, active
+	 *         and pending connects, failures, retries and connect latency, in
+	 *         total and per protocol
+	 */
+	public String ConnectionMetrics();
+
+	/**
+	 * @return JSON progress of the restore of the stored devices at startup:
+	 *         {"state": "warming" or "ready", "restored", "failed", "retrying":
+	 *         failed devices still retried, "total"}
+	 */
+	public String RestoreStatus();
+
+	/**
+	 * Record an access to a device, to keep it from being disconnected when
+	 * idle. Returns at once for a connected device, a device disconnected for
+	 * being idle or stale is connected again before returning.
+	 */
+	public void Touch(String id);
+
+	/**
+	 * Record a subscription to a device or its end, a device with
+	 * subscriptions being never disconnected for being idle
+	 */
+	public void Subscription(String id, boolean active);
+
+	/**
+	 * Mark a device stopped by its device factory, e.g. because the plugin of
+	 * its type was unloaded, as unavailable. The device stays registered and
+	 * stored, and is created again once its type is back.
+	 */
+	public void Release(String id);
+
+	/**
+	 * Emitted while the stored devices are restored at startup, and once the
+	 * first restore pass is over with state "ready"
+	 */
+	public class RestoreProgressSignal extends DBusSignal {
+		public final String state;
+		public final int restored;
+		public final int failed;
+		public final int total;
+
+		public RestoreProgressSignal(String path, String state, int restored, int failed, int total)
+				throws DBusException {
+			super(path, state, restored, failed, total);
+			this.state = state;
+			this.restored = restored;
+			this.failed = failed;
+			this.total = total;
+		}
+	}
+
+	/**
+	 * Emitted on every registry change, in sequence order. The change field
+	 * holds the JSON form of the change: {"sequence", "event", "deviceId",
+	 * "definition"}, event being one of the constants below and definition
+	 * null for deleted devices.
+	 */
+	public class RegistryChangedSignal extends DBusSignal {
+		public static final String REGISTERED = "registered";
+
+		public static final String UPDATED = "updated";
+
+		public static final String DELETED = "deleted";
+
+		public final long sequence;
+		public final String event;
+		public final String deviceId;
+		public final String change;
+
+		public RegistryChangedSignal(String path, long sequence, String event, String deviceId, String change)
+				throws DBusException {
+			super(path, sequence, event, deviceId, change);
+			this.sequence = sequence;
+			this.event = event;
+			this.deviceId = deviceId;
+			this.change = change;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (C) 2017 Create-Net / FBK.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 2.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ * Contributors:
+ *     Create-Net / FBK - initial API and implementation
+ ******************************************************************************/
+package org.eclipse.agail.deviceprocessor;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes the index of the device classes of a module to
+ * {@value #INDEX}, so that the device factory finds them without scanning
+ * directories or loading them at startup.
+ *
+ * Every public top level class implementing org.eclipse.agail.Device with a
+ * public static deviceTypeName is indexed under its simple name, which must
+ * be unique among the device classes of the module; abstract classes are
+ * kept, as their types are still matched:
+ *
+ * <pre>
+ * TISensorTag.class=org.eclipse.agail.device.instance.TISensorTag
+ * TISensorTag.type=TI SensorTag
+ * TISensorTag.rule=true
+ * TISensorTag.names.0=SensorTag
+ * TISensorTag.ignoreCase=false
+ * TISensorTag.protocol=
+ * </pre>
+ *
+ * The type is only written when deviceTypeName is a constant, the rule
+ * entries only for a class with a MatchRule. The entries of an earlier build
+ * whose classes still exist are kept, so an incremental compile does not drop
+ * the classes it did not compile.
+ */
+@SupportedAnnotationTypes("*")
+public class DeviceTypeProcessor extends AbstractProcessor {
+
+    /**
+     * Location of the index in the class output and in the jars
+     */
+    public static final String INDEX = "META-INF/agile/device-types.properties";
+
+    private static final String DEVICE = "org.eclipse.agail.Device";
+
+    private static final String MATCH_RULE = "org.eclipse.agail.device.base.MatchRule";
+
+    private static final String TYPE_NAME = "deviceTypeName";
+
+    /**
+     * Entries by class key, properties by suffix
+     */
+    private final Map<String, Map<String, String>> entries = new TreeMap<String, Map<String, String>>();
+
+    private boolean changed = false;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        readPrevious();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            removeGone();
+            if (changed) {
+                write();
+            }
+            return false;
+        }
+        TypeElement device = processingEnv.getElementUtils().getTypeElement(DEVICE);
+        if (device == null) {
+            return false;
+        }
+        TypeMirror deviceType = processingEnv.getTypeUtils().erasure(device.asType());
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            String key = type.getSimpleName().toString();
+            if (entries.containsKey(key) && type.getQualifiedName().toString().equals(className(key))) {
+                // compiled again, indexed again if still a device class
+                entries.remove(key);
+                changed = true;
+            }
+            if (type.getKind() == ElementKind.CLASS && type.getNestingKind() == NestingKind.TOP_LEVEL
+                    && type.getModifiers().contains(Modifier.PUBLIC)
+                    && processingEnv.getTypeUtils().isAssignable(type.asType(), deviceType)) {
+                index(type);
+            }
+        }
+        // the annotations are left to the other processors
+        return false;
+    }
+
+    private void index(TypeElement type) {
+        VariableElement typeName = null;
+        for (VariableElement field : ElementFilter.fieldsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (field.getSimpleName().contentEquals(TYPE_NAME) && field.getModifiers().contains(Modifier.PUBLIC)
+                    && field.getModifiers().contains(Modifier.STATIC)) {
+                typeName = field;
+                break;
+            }
+        }
+        if (typeName == null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Device class without a public static " + TYPE_NAME + ", not indexed", type);
+            return;
+        }
+
+        String key = type.getSimpleName().toString();
+        String other = className(key);
+        if (other != null && processingEnv.getElementUtils().getTypeElement(other) != null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Device class " + key + " is already indexed for " + other
+                            + ", device classes must have distinct simple names",
+                    type);
+            return;
+        }
+
+        Map<String, String> entry = new TreeMap<String, String>();
+        entry.put("class", type.getQualifiedName().toString());
+        Object constant = typeName.getConstantValue();
+        if (constant instanceof String) {
+            entry.put("type", (String) constant);
+        } else {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    TYPE_NAME + " is not a constant, the class is loaded at startup", type);
+        }
+        for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+            if (!annotationType.getQualifiedName().contentEquals(MATCH_RULE)) {
+                continue;
+            }
+            entry.put("rule", "true");
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> element : processingEnv
+                    .getElementUtils().getElementValuesWithDefaults(annotation).entrySet()) {
+                String name = element.getKey().getSimpleName().toString();
+                Object value = element.getValue().getValue();
+                if (value instanceof List) {
+                    int i = 0;
+                    for (Object item : (List<?>) value) {
+                        entry.put(name + "." + i++, String.valueOf(((AnnotationValue) item).getValue()));
+                    }
+                } else {
+                    entry.put(name, String.valueOf(value));
+                }
+            }
+        }
+        entries.put(key, entry);
+        changed = true;
+    }
+
+    /**
+     * @return the class indexed under a key, null if none
+     */
+    private String className(String key) {
+        Map<String, String> entry = entries.get(key);
+        return entry == null ? null : entry.get("class");
+    }
+
+    /**
+     * Read the entries of an earlier build
+     */
+    private void readPrevious() {
+        Properties previous = new Properties();
+        try {
+            FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (InputStream in = file.openInputStream()) {
+                previous.load(in);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return;
+        } catch (IOException | IllegalArgumentException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "Unable to read the previous " + INDEX + ": " + e.getMessage());
+            return;
+        }
+        for (String property : previous.stringPropertyNames()) {
+            int dot = property.indexOf('.');
+            if (dot > 0) {
+                Map<String, String> entry = entries.get(property.substring(0, dot));
+                if (entry == null) {
+                    entry = new TreeMap<String, String>();
+                    entries.put(property.substring(0, dot), entry);
+                }
+                entry.put(property.substring(dot + 1), previous.getProperty(property));
+            }
+        }
+    }
+
+    /**
+     * Drop the entries of an earlier build whose classes were deleted
+     */
+    private void removeGone() {
+        List<String> gone = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, String>> entry : entries.entrySet()) {
+            String className = entry.getValue().get("class");
+            if (className == null || processingEnv.getElementUtils().getTypeElement(className) == null) {
+                gone.add(entry.getKey());
+            }
+        }
+        entries.keySet().removeAll(gone);
+        changed |= !gone.isEmpty();
+    }
+
+    private void write() {
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (Writer writer = file.openWriter()) {
+                writer.write("# Device classes, generated by " + getClass().getName() + "\n");
+                for (Map.Entry<String, Map<String, String>> entry : entries.entrySet()) {
+                    for (Map.Entry<String, String> property : entry.getValue().entrySet()) {
+                        writer.write(escape(entry.getKey() + "." + property.getKey(), true) + "="
+                                + escape(property.getValue(), false) + "\n");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Unable to write " + INDEX + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Escape a key or value of a properties file, non ASCII characters as
+     * unicode escapes
+     */
+    private static String escape(String s, boolean key) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\':
+            case '=':
+            case ':':
+            case '#':
+            case '!':
+                sb.append('\\').append(c);
+                break;
+            case ' ':
+                sb.append(key || i == 0 ? "\\ " : " ");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\f':
+                sb.append("\\f");
+                break;
+            default:
+                if (c < 0x20 || c > 0x7e) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -57,12 +57,37 @@ public class Device {
   protected org.eclipse.agail.Device getDevice(String id) throws DBusException {
     int pos = id.indexOf('_');
     if (pos < 0) {
+      touch(id);
       return client.getDevice(id);
     } else {
       return client.getDevice("org.eclipse.agail.Device." + id.substring(0, pos), id.substring(pos+1));
     }
   }
 
+  /**
+   * Tell the device manager that the device is in use, so that it connects
+   * the device again if it was disconnected for being idle before the
+   * request goes on.
+   */
+  protected void touch(String id) {
+    try {
+      client.touch(id);
+    } catch (Exception e) {
+      logger.debug("Unable to report access to {}: {}", id, e.getMessage());
+    }
+  }
+
+  protected void subscription(String id, boolean active) {
+    if (id.indexOf('_') >= 0) {
+      return;
+    }
+    try {
+      client.getDeviceRegistry().Subscription(id, active);
+    } catch (Exception e) {
+      logger.debug("Unable to report subscription to {}: {}", id, e.getMessage());
+    }
+  }
+
   @GET
   @Path("/profile")
   public List<DeviceComponent> Profile(@PathParam("id") String id) throws DBusException {
@@ -230,6 +255,7 @@ public class Device {
     try {
       logger.debug("Subscribe to {}/{}", id, sensorName);
       getDevice(id).Subscribe(sensorName);
+      subscription(id, true);
     } catch (UnknownObject | ServiceUnknown ex) {
       throw new AgileDeviceNotFoundException("Device not found");
     } catch (Exception ex) {
@@ -243,6 +269,7 @@ public class Device {
     try {
       logger.debug("Unsubscribe from {}/{}", id, sensorName);
       getDevice(id).Unsubscribe(sensorName);
+      subscription(id, false);
     } catch (UnknownObject | ServiceUnknown ex) {
       throw new AgileDeviceNotFoundException("Device not found");
     } catch (Exception ex) {
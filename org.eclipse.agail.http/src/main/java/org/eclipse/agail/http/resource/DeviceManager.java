@@ -14,6 +14,7 @@
 package org.eclipse.agail.http.resource;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -29,6 +30,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.slf4j.Logger;
@@ -36,13 +38,19 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.eclipse.agail.exception.AgileDeviceNotFoundException;
 import org.eclipse.agail.exception.AgileNoResultException;
+import org.eclipse.agail.devicemanager.DeviceRegistry;
 import org.eclipse.agail.http.Util;
 import org.eclipse.agail.http.resource.devicemanager.BatchBody;
+import org.eclipse.agail.http.resource.devicemanager.FindQuery;
 import org.eclipse.agail.http.service.DbusClient;
 import org.eclipse.agail.object.DeviceDefinition;
 import org.eclipse.agail.object.DeviceOverview;
@@ -63,6 +71,11 @@ public class DeviceManager {
 
 	ObjectMapper mapper = Util.mapper;
 
+	/**
+	 * Devices fetched per DBus call while exporting
+	 */
+	static final int EXPORT_PAGE_SIZE = 500;
+
 	@Context
 	private HttpServletResponse response;
 
@@ -105,14 +118,68 @@ public class DeviceManager {
 	}
 
 	@GET
-	public List<DeviceDefinition> Devices() throws DBusException, JsonProcessingException {
+	public List<DeviceDefinition> Devices() throws DBusException, IOException {
+		// while warming up, the devices not restored yet are served from their
+		// stored definition; tell the client how far the restore is
+		JsonNode status = mapper.readTree(client.getDeviceRegistry().RestoreStatus());
+		if (!"ready".equals(status.path("state").asText())) {
+			response.setHeader("X-Agile-Restore", status.path("state").asText() + " "
+					+ status.path("restored").asInt() + "/" + status.path("total").asInt());
+		}
 		return client.getDeviceManager().Devices();
 	}
 
+	@GET
+	@Path("/status")
+	public String RestoreStatus() throws DBusException {
+		return client.getDeviceRegistry().RestoreStatus();
+	}
+
+	@POST
+	@Path("/import")
+	public String Import(String devices) throws DBusException {
+		return client.getDeviceRegistry().Import(devices);
+	}
+
+	@GET
+	@Path("/export")
+	public StreamingOutput Export() throws DBusException {
+		DeviceRegistry registry = client.getDeviceRegistry();
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException {
+				try (JsonGenerator generator = mapper.getFactory().createGenerator(output)) {
+					generator.writeStartArray();
+					int offset = 0;
+					int count;
+					do {
+						count = 0;
+						try (JsonParser parser = mapper.getFactory().createParser(registry.Export(offset, EXPORT_PAGE_SIZE))) {
+							parser.nextToken();
+							while (parser.nextToken() == JsonToken.START_OBJECT) {
+								generator.copyCurrentStructure(parser);
+								count++;
+							}
+						}
+						generator.flush();
+						offset += count;
+					} while (count == EXPORT_PAGE_SIZE);
+					generator.writeEndArray();
+				}
+			}
+		};
+	}
+
+	@GET
+	@Path("/connections")
+	public String ConnectionMetrics() throws DBusException {
+		return client.getDeviceRegistry().ConnectionMetrics();
+	}
+
 	@POST
 	@Path("/find")
-	public String Find() {
-		throw new InternalError("Not implemented");
+	public String Find(FindQuery query) throws DBusException, JsonProcessingException {
+		return client.getDeviceRegistry().Search(query == null ? "{}" : mapper.writeValueAsString(query));
 	}
 
 	@GET
@@ -130,8 +197,16 @@ public class DeviceManager {
 	@PUT
 	@Path("/{id}")
 	public void Update(@PathParam("id") String id, DeviceDefinition definition) throws DBusException {
-		// TODO: check consistency of id and definition.get("id);
-		client.getDeviceManager().Update(id, definition);
+		DeviceDefinition current = client.getDeviceManager().Read(id);
+		if (definition.deviceId != null && !definition.deviceId.trim().equals(current.deviceId.trim())) {
+			throw new WebApplicationException("Device id " + definition.deviceId + " does not match " + id,
+					HttpServletResponse.SC_BAD_REQUEST);
+		}
+		// DBus has no null values, absent fields are sent unchanged
+		client.getDeviceManager().Update(id, new DeviceDefinition(current.deviceId, current.address,
+				definition.name != null ? definition.name : current.name,
+				definition.description != null ? definition.description : current.description, current.protocol,
+				current.path, definition.streams != null ? definition.streams : current.streams));
 	}
 
 	@DELETE
@@ -150,8 +225,8 @@ public class DeviceManager {
 
 	@POST
 	@Path("/batch")
-	public void Batch(BatchBody body) throws DBusException {
-		client.getDeviceManager().Batch(body.operation, body.arguments);
+	public String Batch(BatchBody body) throws DBusException {
+		return client.getDeviceRegistry().RunBatch(body.operation, body.arguments);
 	}
 
 }
@@ -19,8 +19,18 @@ package org.eclipse.agail.http.resource.devicemanager;
  */
 public class FindQuery {
   
+  /**
+   * Name prefix, case insensitive
+   */
   public String name;
   public String protocol;
   public String id;
+  public String type;
+  /**
+   * Connection status, e.g. CONNECTED
+   */
+  public String status;
+  public Integer offset;
+  public Integer limit;
   
 }
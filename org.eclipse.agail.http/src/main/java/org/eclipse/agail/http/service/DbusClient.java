@@ -17,8 +17,15 @@ import org.eclipse.agail.Device;
 import org.eclipse.agail.DeviceManager;
 import org.eclipse.agail.Protocol;
 import org.eclipse.agail.ProtocolManager;
+import org.eclipse.agail.devicemanager.DeviceRegistry;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.freedesktop.dbus.DBusConnection;
 import org.freedesktop.dbus.DBusInterface;
 import org.freedesktop.dbus.exceptions.DBusException;
@@ -36,6 +43,25 @@ public class DbusClient {
 
   private ConcurrentMap<String, DBusInterface> instances = new ConcurrentHashMap();
 
+  /**
+   * Minimum interval between two accesses reported for a device, in ms
+   */
+  private static final long TOUCH_INTERVAL = 1000;
+
+  /**
+   * Time an access report waits for the device manager, which connects a
+   * device disconnected for being idle before replying, in ms
+   */
+  private static final long TOUCH_TIMEOUT = 10000;
+
+  private ConcurrentMap<String, Long> touched = new ConcurrentHashMap<String, Long>();
+
+  private final ExecutorService touchPool = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "device-touch");
+    thread.setDaemon(true);
+    return thread;
+  });
+
   DBusConnection connection;
 
   public DbusClient() throws DBusException {
@@ -44,7 +70,8 @@ public class DbusClient {
 
   protected synchronized DBusInterface getObject(String objectBusname, String objectPath, Class<? extends DBusInterface> clazz) throws DBusException {
     
-    String key = objectBusname + ":" + objectPath;
+    // several interfaces can be exported on the same object
+    String key = objectBusname + ":" + objectPath + ":" + clazz.getName();
     if(instances.containsKey(key)) {
       logger.debug("Load cached object {}:{}", objectBusname, objectPath);
       return instances.get(key);
@@ -89,4 +116,37 @@ public class DbusClient {
     return (DeviceManager) getObject(iface, path, DeviceManager.class);
   }
 
+  public DeviceRegistry getDeviceRegistry() throws DBusException {
+    String iface = DeviceManager.AGILE_INTERFACE;
+    String path = "/" + DeviceManager.AGILE_INTERFACE.replace(".", "/");
+    return (DeviceRegistry) getObject(iface, path, DeviceRegistry.class);
+  }
+
+  /**
+   * Report an access to a device to the device manager, waiting up to
+   * TOUCH_TIMEOUT for the device to be connected again if it was
+   * disconnected for being idle. Once reported, the accesses to a device are
+   * not reported again for TOUCH_INTERVAL.
+   */
+  public void touch(String id) throws DBusException {
+    long now = System.currentTimeMillis();
+    Long last = touched.get(id);
+    if (last != null && now - last < TOUCH_INTERVAL) {
+      return;
+    }
+    DeviceRegistry registry = getDeviceRegistry();
+    try {
+      CompletableFuture.runAsync(() -> registry.Touch(id), touchPool).get(TOUCH_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      logger.warn("Device {} not ready within {} ms", id, TOUCH_TIMEOUT);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      throw new DBusException(e.getCause().getMessage());
+    }
+    touched.put(id, now);
+  }
+
 }
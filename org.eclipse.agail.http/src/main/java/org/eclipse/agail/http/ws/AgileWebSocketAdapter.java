@@ -24,11 +24,16 @@ import org.freedesktop.dbus.exceptions.DBusException;
 
 import org.eclipse.agail.Device;
 import org.eclipse.agail.Device.NewSubscribeValueSignal;
+import org.eclipse.agail.DeviceManager;
+import org.eclipse.agail.devicemanager.DeviceRegistry;
+import org.eclipse.agail.devicemanager.DeviceRegistry.RegistryChangedSignal;
 import org.eclipse.agail.object.StatusType;
 import org.eclipse.agail.object.DeviceStatusType;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,6 +51,11 @@ public class AgileWebSocketAdapter extends WebSocketAdapter {
   private String deviceID = null;
   private String sensorName = null;
   private DBusSigHandler sigHandler;
+  private Class sigClass = Device.NewSubscribeValueSignal.class;
+  /**
+   * Last registry change sent on a change feed connection
+   */
+  private long lastChange = 0;
   private boolean subscribed = false;
 
   private boolean websocketOpen = false;
@@ -67,7 +77,9 @@ public class AgileWebSocketAdapter extends WebSocketAdapter {
     try {
       DBusConnection connection = DBusConnection.getConnection(DBusConnection.SESSION);
 
-      if (m.matches()) {
+      if (uripath.matches("^/ws/devices/changes/?")) {
+        subscribeChanges(connection, sess.getUpgradeRequest().getParameterMap().get("since"));
+      } else if (m.matches()) {
         deviceID = m.group(1);
         sensorName = m.group(2);
 
@@ -75,6 +87,8 @@ public class AgileWebSocketAdapter extends WebSocketAdapter {
         String path = "/" + Device.AGILE_INTERFACE.replace(".", "/")  + "/" + deviceID;
         Device device = connection.getRemoteObject(busname, path, Device.class);
 
+        // connects the device again if it was disconnected for being idle
+        subscription(connection, true);
         logger.info(device.Status().getStatus());
         if (device.Status().getStatus().equals(DeviceStatusType.CONNECTED.toString())) {
           device.Subscribe(sensorName);
@@ -125,6 +139,81 @@ public class AgileWebSocketAdapter extends WebSocketAdapter {
     }
   }
 
+  /**
+   * Stream the registry changes. With ?since=N the changes after N still held
+   * by the device manager are sent first; a first message with "complete":
+   * false tells the client that it missed changes and must reload the devices.
+   * A since that is not a sequence number closes the socket with 400.
+   */
+  private void subscribeChanges(DBusConnection connection, List<String> since) throws DBusException {
+    long from = -1;
+    if (since != null && !since.isEmpty()) {
+      try {
+        from = Long.parseLong(since.get(0).trim());
+      } catch (NumberFormatException e) {
+        from = -1;
+      }
+      if (from < 0) {
+        logger.info("Invalid since {} on the change feed", since.get(0));
+        session.close(400, "Invalid since, expected a change sequence number");
+        return;
+      }
+    }
+    sigClass = DeviceRegistry.RegistryChangedSignal.class;
+    sigHandler = new DBusSigHandler<DeviceRegistry.RegistryChangedSignal>() {
+      @Override
+      public void handle(RegistryChangedSignal sig) {
+        sendChange(sig.sequence, sig.change);
+      }
+    };
+    // hold live changes back until the backlog is sent, so they stay in order
+    synchronized (this) {
+      connection.addSigHandler(DeviceRegistry.RegistryChangedSignal.class, sigHandler);
+      String busname = DeviceManager.AGILE_INTERFACE;
+      String path = "/" + DeviceManager.AGILE_INTERFACE.replace(".", "/");
+      DeviceRegistry registry = connection.getRemoteObject(busname, path, DeviceRegistry.class);
+      try {
+        JsonNode backlog = mapper.readTree(registry.Changes(Math.max(from, 0)));
+        lastChange = backlog.get("sequence").asLong();
+        if (from >= 0) {
+          session.getRemote().sendString(mapper.createObjectNode()
+              .put("sequence", lastChange)
+              .put("complete", backlog.get("complete").asBoolean()).toString());
+          for (JsonNode change : backlog.get("changes")) {
+            session.getRemote().sendString(change.toString());
+          }
+        }
+      } catch (IOException e) {
+        logger.error("Unable to send registry changes: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Report the subscription of this socket to the device manager
+   */
+  private void subscription(DBusConnection connection, boolean active) {
+    try {
+      String busname = DeviceManager.AGILE_INTERFACE;
+      String path = "/" + DeviceManager.AGILE_INTERFACE.replace(".", "/");
+      connection.getRemoteObject(busname, path, DeviceRegistry.class).Subscription(deviceID, active);
+    } catch (Exception e) {
+      logger.debug("Unable to report subscription to {}: {}", deviceID, e.getMessage());
+    }
+  }
+
+  private synchronized void sendChange(long sequence, String change) {
+    if (!websocketOpen || sequence <= lastChange) {
+      return;
+    }
+    lastChange = sequence;
+    try {
+      session.getRemote().sendString(change);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   @Override
   public void onWebSocketClose(int statusCode, String reason) {
     websocketOpen=false;
@@ -132,7 +221,7 @@ public class AgileWebSocketAdapter extends WebSocketAdapter {
       DBusConnection connection = DBusConnection.getConnection(DBusConnection.SESSION);
 
       if (sigHandler != null) {
-        connection.removeSigHandler(Device.NewSubscribeValueSignal.class, sigHandler);
+        connection.removeSigHandler(sigClass, sigHandler);
         sigHandler = null;
       }
 
@@ -146,6 +235,7 @@ public class AgileWebSocketAdapter extends WebSocketAdapter {
           device.Unsubscribe(sensorName);
           subscribed = false;
         }
+        subscription(connection, false);
       } else {
         logger.info("closing reason:{}/{}", deviceID, sensorName, statusCode, reason);
       }